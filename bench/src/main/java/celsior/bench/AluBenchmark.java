@@ -0,0 +1,125 @@
+package celsior.bench;
+
+import celsior.component.ALU;
+import celsior.component.CPU;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Each {@link ALU} operation on its own. Operands change every call, so nothing folds to a constant.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class AluBenchmark {
+    
+    private byte[] regs;
+    private ALU alu;
+    
+    @Setup
+    public void setUp() {
+        regs = new byte[CPU.REGISTER_COUNT];
+        alu = new ALU(regs);
+    }
+    
+    private void next() {
+        regs[CPU.ALU0] += 3;
+        regs[CPU.ALU1] -= 5;
+    }
+    
+    @Benchmark
+    public byte add() {
+        next();
+        alu.aua();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte subtract() {
+        next();
+        alu.aus();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte multiply() {
+        next();
+        alu.aum();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte xor() {
+        next();
+        alu.aux();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte or() {
+        next();
+        alu.aur();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte and() {
+        next();
+        alu.aud();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte not() {
+        next();
+        alu.aun();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte shiftRight() {
+        next();
+        alu.rsft();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte compare() {
+        next();
+        alu.auc();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte less() {
+        next();
+        alu.aul();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte greaterOrEqual() {
+        next();
+        alu.age();
+        return regs[CPU.ALU2];
+    }
+    
+    @Benchmark
+    public byte lessOrEqual() {
+        next();
+        alu.ale();
+        return regs[CPU.ALU2];
+    }
+}
@@ -0,0 +1,62 @@
+package celsior.bench;
+
+import celsior.Machine;
+import celsior.component.CPU;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time per executed instruction through {@link Machine#run}, which clocks the CPU and GPU, for each
+ * instruction mix in every execution mode, with and without the JIT.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class DispatchBenchmark {
+    
+    private static final int BATCH = 10_000;
+    
+    @Param({"ALU", "MEMORY", "BRANCH", "MIXED"})
+    public Programs program;
+    
+    @Param({"BUS", "MACRO"})
+    public CPU.Mode mode;
+    
+    @Param({"false", "true"})
+    public boolean jit;
+    
+    private Machine machine;
+    
+    @Setup
+    public void setUp() {
+        machine = new Machine();
+        machine.cpu.setMode(mode);
+        machine.cpu.setJitEnabled(jit);
+        machine.load(program.rom());
+        machine.start();
+        
+        machine.run(BATCH);
+        if(machine.isStopped())
+            throw new IllegalStateException(program + " stopped: " + machine.getLastError());
+    }
+    
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public long run() {
+        return machine.run(BATCH);
+    }
+}
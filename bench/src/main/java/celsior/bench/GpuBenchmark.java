@@ -0,0 +1,70 @@
+package celsior.bench;
+
+import celsior.Machine;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The GPU's drawing instructions, which read their arguments from registers r0-r4.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class GpuBenchmark {
+    
+    private Machine machine;
+    private byte[] regs;
+    
+    @Setup
+    public void setUp() {
+        machine = new Machine();
+        machine.start();
+        regs = machine.cpu.regs;
+    }
+    
+    private void set(int x0, int y0, int x1, int y1, int color) {
+        regs[0] = (byte) x0;
+        regs[1] = (byte) y0;
+        regs[2] = (byte) x1;
+        regs[3] = (byte) y1;
+        regs[4] = (byte) color;
+    }
+    
+    @Benchmark
+    public void pixel() {
+        set(regs[0] + 1 & 0x7F, 35, 0, 0, regs[4] + 1);
+        machine.gpu.pxl((byte) 0, (byte) 1, (byte) 4);
+    }
+    
+    /** Across the whole screen. */
+    @Benchmark
+    public void lineHorizontal() {
+        set(0, regs[1] + 1 & 0x3F, 127, regs[1] + 1 & 0x3F, regs[4] + 1);
+        machine.gpu.line((byte) 0, (byte) 1, (byte) 2, (byte) 3, (byte) 4);
+    }
+    
+    /** Corner to corner, the longest line. */
+    @Benchmark
+    public void lineDiagonal() {
+        set(0, 0, 127, 71, regs[4] + 1);
+        machine.gpu.line((byte) 0, (byte) 1, (byte) 2, (byte) 3, (byte) 4);
+    }
+    
+    @Benchmark
+    public void lineShort() {
+        set(60, 30, 67, 41, regs[4] + 1);
+        machine.gpu.line((byte) 0, (byte) 1, (byte) 2, (byte) 3, (byte) 4);
+    }
+}
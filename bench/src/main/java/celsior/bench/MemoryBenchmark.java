@@ -0,0 +1,78 @@
+package celsior.bench;
+
+import celsior.Machine;
+import celsior.component.DirectMemory;
+import celsior.component.HeapMemory;
+import celsior.component.Memory;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Loading ROMs of several sizes, into a bare {@link Memory} and through {@link Machine#load}, which also
+ * invalidates decoded instructions, with each kind of memory.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(2)
+public class MemoryBenchmark {
+    
+    /** Bytes of code, the largest fills memory. */
+    @Param({"256", "4096", "65536"})
+    public int size;
+    
+    /** {@code celsior.memory}, every trial forks a new JVM so the machine picks it up. */
+    @Param({"heap", "direct"})
+    public String backend;
+    
+    private byte[] rom;
+    private Memory memory;
+    private Machine machine;
+    
+    @Setup
+    public void setUp() {
+        rom = new byte[16 + size];
+        new Random(42).nextBytes(rom);
+        
+        System.setProperty("celsior.memory", backend);
+        memory = backend.equals("direct") ? new DirectMemory(65536) : new HeapMemory(65536);
+        machine = new Machine();
+    }
+    
+    @Benchmark
+    public Memory putBytes() {
+        memory.putBytes(0, rom);
+        return memory;
+    }
+    
+    /** Reads and writes every byte, the way instructions do. */
+    @Benchmark
+    public int readWrite() {
+        int sum = 0;
+        for(int address = 0; address < 65536; address++) {
+            sum += memory.getByte(address);
+            memory.putByte(address, sum);
+        }
+        
+        return sum;
+    }
+    
+    @Benchmark
+    public Machine load() {
+        machine.load(rom);
+        return machine;
+    }
+}
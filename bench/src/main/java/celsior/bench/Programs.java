@@ -0,0 +1,91 @@
+package celsior.bench;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Instruction mixes for {@link DispatchBenchmark}, each an endless loop so a benchmark can run any number
+ * of instructions. The ROMs are assembled here rather than read from files so the benchmarks don't
+ * depend on anything outside the jar.
+ */
+public enum Programs {
+    
+    /** Arithmetic and logic between registers. */
+    ALU(new int[][] {
+        {0x09, 2, 3},       // MOV r2 3
+        {0x01, 0, 2, 0},    // ADD r0 r2 r0
+        {0x02, 1, 2, 1},    // SUB r1 r2 r1
+        {0x03, 0, 1, 3},    // MUL r0 r1 r3
+        {0x16, 3, 0, 4},    // XOR r3 r0 r4
+        {0x13, 4, 1, 5},    // AND r4 r1 r5
+        {0x15, 5, 2, 6},    // OR r5 r2 r6
+        {0x05, 6, 2, 7},    // LFT r6 r2 r7
+        {0x04, 7, 2, 7},    // RGT r7 r2 r7
+    }),
+    
+    /** Loads and stores to memory, VRAM and the stack. */
+    MEMORY(new int[][] {
+        {0x09, 2, 1},       // MOV r2 1
+        {0x01, 0, 2, 0},    // ADD r0 r2 r0
+        {0x0D, 0, 0x80, 0}, // RTM r0 0x8000
+        {0x0C, 0x80, 0, 1}, // MTR 0x8000 r1
+        {0x10, 1, 3},       // RTV r1 3
+        {0x0F, 3, 4},       // VTR 3 r4
+        {0x0A, 1},          // PSH r1
+        {0x0B, 10, 5},      // RTR stack r5
+    }),
+    
+    /** A counter compared and branched on every iteration, the pairs the macro table fuses. */
+    BRANCH(new int[][] {
+        {0x09, 2, 1},       // MOV r2 1
+        {0x01, 0, 2, 0},    // ADD r0 r2 r0
+        {0x12, 0, 3},       // CMP r0 r3
+        {0x08, 1, 5},       // JIF 1 not equal
+    }),
+    
+    /** All of the above in one loop. */
+    MIXED(concat(ALU.body, MEMORY.body, BRANCH.body));
+    
+    /** Where the loop starts, after the LBL pointing label 1 at it. */
+    private static final int LOOP = 4;
+    
+    private final int[][] body;
+    
+    Programs(int[][] _body) {
+        body = _body;
+    }
+    
+    /**
+     * Assembles the ROM: a header, {@code LBL 1} pointing at the loop, the body and a jump back.
+     */
+    public byte[] rom() {
+        ByteArrayOutputStream rom = new ByteArrayOutputStream();
+        rom.write(new byte[16], 0, 16);
+        
+        write(rom, new int[] {0x06, 1, LOOP >> 8, LOOP & 0xFF}); // LBL 1 loop
+        for(int[] instruction : body)
+            write(rom, instruction);
+        write(rom, new int[] {0x07, 1}); // JMP 1
+        
+        return rom.toByteArray();
+    }
+    
+    private static void write(ByteArrayOutputStream rom, int[] instruction) {
+        for(int b : instruction)
+            rom.write(b);
+    }
+    
+    private static int[][] concat(int[][]... bodies) {
+        int length = 0;
+        for(int[][] body : bodies)
+            length += body.length;
+        
+        int[][] all = new int[length][];
+        int i = 0;
+        for(int[][] body : bodies) {
+            System.arraycopy(body, 0, all, i, body.length);
+            i += body.length;
+        }
+        
+        return all;
+    }
+}
@@ -0,0 +1,75 @@
+package celsior.bench;
+
+import celsior.Machine;
+import celsior.Screen;
+import celsior.component.Memory;
+import java.awt.image.BufferedImage;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Drawing one frame with {@link Screen#render} at the window's scale, from VRAM and text filled with
+ * the same random pixels and characters every run. Before each frame some pages are written with the
+ * values they already hold, since only written pages are redrawn.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 2, jvmArgsAppend = "-Djava.awt.headless=true")
+public class ScreenBenchmark {
+    
+    /** Number of character codes the text mode can show. */
+    private static final int CHARACTERS = 74;
+    
+    @Param({"false", "true"})
+    public boolean graphicsMode;
+    
+    /** VRAM pages written before each frame, all 36 is a program redrawing the whole screen. Text is one page. */
+    @Param({"1", "36"})
+    public int writtenPages;
+    
+    private Machine machine;
+    private Screen screen;
+    
+    @Setup
+    public void setUp() {
+        machine = new Machine();
+        machine.gpu.graphicsMode = graphicsMode;
+        
+        Random random = new Random(42);
+        for(int i = 0; i < machine.gpu.CHAR_START; i++)
+            machine.gpu.m.putByte(i, random.nextInt(256));
+        for(int i = machine.gpu.CHAR_START; i < machine.gpu.m.size(); i++)
+            machine.gpu.m.putByte(i, random.nextInt(CHARACTERS));
+        
+        screen = new Screen();
+    }
+    
+    @Benchmark
+    public BufferedImage render() {
+        Memory m = machine.gpu.m;
+        
+        if(graphicsMode) {
+            for(int page = 0; page < writtenPages; page++)
+                m.putByte(page << Memory.PAGE_BITS, m.getByte(page << Memory.PAGE_BITS));
+        } else {
+            m.putByte(machine.gpu.CHAR_START, m.getByte(machine.gpu.CHAR_START));
+        }
+        
+        screen.render(machine.gpu);
+        return screen.getBuffer();
+    }
+}
@@ -0,0 +1,216 @@
+package celsior;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs many independent jobs, each a ROM and optionally an {@link InputScript}, on their own
+ * {@link Machine}s in parallel on a work-stealing pool. Every job has the same cycle budget and time limit
+ * (see {@link Headless.Options}), and its results are written as one JSON object per line, in job order.
+ */
+public final class Batch {
+    
+    private Batch() {}
+    
+    public static final class Job {
+        public final Path rom;
+        
+        /** Input to feed the program, null for none. */
+        public final InputScript input;
+        
+        public Job(Path _rom, InputScript _input) {
+            rom = _rom;
+            input = _input;
+        }
+    }
+    
+    /**
+     * Runs {@code jobs} and writes their results to {@code report} as they finish, keeping the jobs' order.
+     * @param jobs the jobs to run
+     * @param options limits and execution settings shared by every job
+     * @param parallelism how many jobs run at the same time
+     * @param report receives one line of JSON per job
+     * @return the number of jobs per status ("halted", "cycles", "time" or "failed")
+     */
+    public static Map<String, Integer> run(List<Job> jobs, Headless.Options options, int parallelism, Writer report)
+            throws IOException {
+        Map<String, Integer> statuses = new TreeMap<>();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        
+        try {
+            List<ForkJoinTask<String[]>> tasks = new ArrayList<>();
+            for(Job job : jobs)
+                tasks.add(pool.submit(() -> run(job, options)));
+            
+            for(ForkJoinTask<String[]> task : tasks) {
+                String[] result = task.join();
+                
+                statuses.merge(result[0], 1, Integer::sum);
+                report.write(result[1]);
+                report.write('\n');
+                report.flush();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+        
+        return statuses;
+    }
+    
+    /**
+     * @return the job's status and its line of JSON
+     */
+    private static String[] run(Job job, Headless.Options options) {
+        StringBuilder json = new StringBuilder("{\"rom\":").append(quote(job.rom.toString()))
+                .append(",\"input\":").append(job.input != null ? quote(job.input.name) : "null");
+        
+        Headless.Result result;
+        try {
+            Headless.Options jobOptions = options.copy();
+            // the report has the error, logging it too would interleave bare messages from every thread
+            jobOptions.errors = (machine, message) -> {};
+            if(job.input != null)
+                jobOptions.input = job.input;
+            
+            result = Headless.run(job.rom.toString(), job.rom, jobOptions);
+        } catch (Exception ex) {
+            json.append(",\"status\":\"failed\",\"error\":").append(quote(String.valueOf(ex))).append('}');
+            return new String[] {"failed", json.toString()};
+        }
+        
+        json.append(",\"status\":").append(quote(result.status))
+                .append(",\"error\":").append(result.error != null ? quote(result.error) : "null")
+                .append(",\"cycles\":").append(result.cycles)
+                .append(",\"nanos\":").append(result.nanos)
+                .append(",\"mips\":").append(String.format(Locale.ROOT, "%.3f", result.mips()))
+                .append(",\"pc\":").append(result.progCounter)
+                .append(",\"regs\":\"").append(String.format("%08x", result.registerHash))
+                .append("\",\"mem\":\"").append(String.format("%08x", result.memoryHash))
+                .append("\",\"vram\":\"").append(String.format("%08x", result.vramHash))
+                .append("\"}");
+        
+        return new String[] {result.status, json.toString()};
+    }
+    
+    private static String quote(String s) {
+        StringBuilder quoted = new StringBuilder("\"");
+        
+        for(char c : s.toCharArray()) {
+            switch(c) {
+                case '"': quoted.append("\\\""); break;
+                case '\\': quoted.append("\\\\"); break;
+                case '\n': quoted.append("\\n"); break;
+                case '\r': quoted.append("\\r"); break;
+                case '\t': quoted.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    else
+                        quoted.append(c);
+            }
+        }
+        
+        return quoted.append('"').toString();
+    }
+    
+    /**
+     * Collects the files ending in {@code extension} under {@code path}, or {@code path} itself if it
+     * is a file, sorted by name.
+     */
+    private static List<Path> files(Path path, String extension) throws IOException {
+        if(!Files.isDirectory(path))
+            return Collections.singletonList(path);
+        
+        try(Stream<Path> walk = Files.walk(path)) {
+            return walk.filter(p -> Files.isRegularFile(p) && p.getFileName().toString().endsWith(extension))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+    
+    /**
+     * Command line entry point, also reached with {@code --batch} as the first argument to
+     * {@link Celsior#main}. Each ROM (or directory of ROMs) runs once per input script given with
+     * {@code --inputs}, or once without input if there are none.
+     */
+    public static void main(String[] args) {
+        Headless.Options options = new Headless.Options();
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        String reportFile = null;
+        List<Path> roms = new ArrayList<>();
+        List<InputScript> inputs = new ArrayList<>();
+        
+        try {
+            for(int i = 0; i < args.length; i++) {
+                int next = options.parse(args, i);
+                
+                if(next > i) {
+                    i = next - 1;
+                } else if(args[i].equals("--jobs")) {
+                    parallelism = Integer.parseInt(args[++i]);
+                } else if(args[i].equals("--report")) {
+                    reportFile = args[++i];
+                } else if(args[i].equals("--inputs")) {
+                    for(Path script : files(Paths.get(args[++i]), ".txt"))
+                        inputs.add(InputScript.read(script));
+                } else if(args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                } else {
+                    roms.addAll(files(Paths.get(args[i]), ".casm"));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | IOException ex) {
+            System.err.println("[ERROR] " + (ex instanceof ArrayIndexOutOfBoundsException ? "Missing option value" : ex.getMessage()));
+            usage();
+            System.exit(2);
+        }
+        
+        if(options.trace != null || options.profile != null || options.saveState != null || options.exportFrames != null) {
+            System.err.println("[ERROR] --trace, --profile, --save-state and --export-frames write a single run's file, use --headless");
+            System.exit(2);
+        }
+        
+        if(roms.isEmpty() || parallelism < 1) {
+            usage();
+            System.exit(2);
+        }
+        
+        List<Job> jobs = new ArrayList<>();
+        for(Path rom : roms) {
+            if(inputs.isEmpty())
+                jobs.add(new Job(rom, null));
+            
+            for(InputScript input : inputs)
+                jobs.add(new Job(rom, input));
+        }
+        
+        long start = System.nanoTime();
+        Map<String, Integer> statuses;
+        
+        try(Writer report = reportFile != null
+                ? Files.newBufferedWriter(Paths.get(reportFile), StandardCharsets.UTF_8)
+                : new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))) {
+            statuses = run(jobs, options, parallelism, report);
+        } catch (IOException ex) {
+            System.err.println("[ERROR] Failed to write report: " + ex.getLocalizedMessage());
+            System.exit(1);
+            return;
+        }
+        
+        System.err.println(String.format("[INFO] Ran %d jobs on %d threads in %.1fs: %s",
+                jobs.size(), parallelism, (System.nanoTime() - start) / 1e9, statuses));
+        
+        System.exit(statuses.containsKey("failed") ? 1 : 0);
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: celsior --batch [--jobs n] [--report file.jsonl] [--inputs script-or-directory] "
+                + Headless.Options.USAGE + " rom-or-directory...");
+    }
+}
@@ -1,7 +1,13 @@
 package celsior;
 
-import celsior.component.GPU;
 import celsior.component.CPU;
+import celsior.component.DecodedInstruction;
+import celsior.component.Instrument;
+import celsior.component.PairProfile;
+import celsior.component.Profiler;
+import celsior.jit.Aot;
+import celsior.trace.TraceDiff;
+import celsior.trace.TraceDump;
 import java.awt.*;
 import java.awt.event.*;
 import java.io.*;
@@ -11,27 +17,57 @@ import javax.swing.*;
 public class Celsior {
     public static Celsior instance;
     
-    public static CPU cpu;
-    public static GPU gpu;
+    /** The machine shown in the window. */
+    public static Machine machine;
     public static Screen screen;
     public static boolean debugging;
-    public static boolean stopped = true;
-    public static boolean paused = false;
+    public static volatile boolean paused = false;
+    public static boolean aot;
+    private static boolean logInstructions;
     
     public static DebugFrame debugFrame;
     
     private String progName = "";
     
     private int cpuFreqHz;
-    private int periodNanos;
-    private int cyclesPerRefresh;
+    private final Scheduler scheduler = new Scheduler(cycles -> machine.run(cycles), this::frame,
+            () -> machine.isStopped(), 1000);
+    
+    /** Snapshots taken while running, for the rewind and step back buttons. */
+    private static Rewind rewind;
+    
+    /** Records the input while recording is on, null otherwise. */
+    private static InputRecorder inputRecorder;
+    private static volatile FrameExport frameExport;
     
     private static JFrame container;
     private static Canvas canvas;
     private static JMenuBar menuBar;
     private static JButton pauseButton;
     private static JButton stepButton;
+    private static JButton stepBackButton;
+    private static JButton rewindButton;
     private static JMenuItem debugModeMenuItem;
+    private static JMenuItem jitMenuItem;
+    private static JMenuItem mmioMenuItem;
+    private static JMenuItem aotMenuItem;
+    private static JMenuItem turboMenuItem;
+    private static JMenuItem modeMenuItem;
+    private static JMenuItem pairProfileMenuItem;
+    private static JMenuItem profilerMenuItem;
+    private static JMenuItem logInstructionsMenuItem;
+    private static JMenuItem recordInputItem;
+    private static JMenuItem exportFramesItem;
+    private static PairProfile pairProfile;
+    private static Profiler profiler;
+    
+    /** Refreshes the debug window after every instruction while debug mode is on. */
+    private static final Instrument DEBUGGER = new Instrument() {
+        @Override
+        public void after(CPU cpu, DecodedInstruction in) {
+            updateDebug(cpu);
+        }
+    };
     
     private final Image icon;
     
@@ -41,6 +77,26 @@ public class Celsior {
     
     // not celsius
     public static void main(String[] args) throws IOException {
+        if(args.length > 0 && args[0].equals("--headless")) {
+            Headless.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        if(args.length > 0 && args[0].equals("--batch")) {
+            Batch.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        if(args.length > 0 && args[0].equals("--trace-dump")) {
+            TraceDump.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
+        if(args.length > 0 && args[0].equals("--trace-diff")) {
+            TraceDiff.main(java.util.Arrays.copyOfRange(args, 1, args.length));
+            return;
+        }
+        
         int frequency = 1000;
 
         if(args.length > 0) {
@@ -52,12 +108,11 @@ public class Celsior {
         }
 
         instance = new Celsior(frequency);
-        instance.startScreenThread();
     }
     
     public Celsior(int freqHz) throws IOException {
-        cpu = new CPU();
-        gpu = new GPU();
+        machine = new Machine(Celsior::showError);
+        rewind = new Rewind(machine);
         
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
@@ -78,41 +133,53 @@ public class Celsior {
         
         updateDebugMode(debug);
         
+        updateJit(PREFS.getBoolean("celsior_jit", false));
+        updateAot(PREFS.getBoolean("celsior_aot", false));
+        updateLogInstructions(PREFS.getBoolean("celsior_log_instructions", false));
+        updateMemoryMapped(PREFS.getBoolean("celsior_mmio", false));
+        
+        try {
+            updateMode(CPU.Mode.valueOf(PREFS.get("celsior_mode", CPU.Mode.BUS.name())));
+        } catch (IllegalArgumentException ex) {
+            updateMode(CPU.Mode.BUS);
+        }
+        
         stopEmulation();
     }
     
     public void pause() {
         paused = true;
+        scheduler.pause();
         
-        System.out.println("[INFO] Emulation paused.");
-        
-        instance.refreshScreen();
+        Log.info("Emulation paused.");
         
         pauseButton.setText("Unpause");
         
         stepButton.setEnabled(true);
+        stepBackButton.setEnabled(true);
     }
     
     public void unpause() {
         paused = false;
+        scheduler.resume();
         
-        System.out.println("[INFO] Emulation unpaused.");
+        Log.info("Emulation unpaused.");
         
         pauseButton.setText("Pause");
         
         stepButton.setEnabled(false);
+        stepBackButton.setEnabled(false);
         
-        if(stopped) {
+        if(machine.isStopped()) {
             stopEmulation();
         }
     }
     
     private void setFreq(int freqHz) {
-        freqHz = Math.max(25, freqHz); // can't go under 25 due to cyclesPerRefresh
+        freqHz = Math.max(1, freqHz);
         
         cpuFreqHz = freqHz;
-        periodNanos = 1000000000 / freqHz;
-        cyclesPerRefresh = freqHz / 25;
+        scheduler.setFrequency(freqHz);
         
         setName();
     }
@@ -120,7 +187,7 @@ public class Celsior {
     private void setName() {
         String name = NAME + " - ";
         
-        name += (stopped ? "Stopped " : (paused ? "Paused " : "Running "));
+        name += (machine.isStopped() ? "Stopped " : (paused ? "Paused " : "Running "));
         
         if(!progName.isEmpty())
             name += progName;
@@ -129,20 +196,11 @@ public class Celsior {
         debugFrame.setTitle(name + " - DEBUGGER");
     }
     
-    public void startScreenThread() {
-        java.util.Timer timer = new java.util.Timer();
-        timer.scheduleAtFixedRate(new java.util.TimerTask() {
-            @Override
-            public void run() {
-                refreshScreen();
-            }
-        }, 0L, 40L);
-    }
-    
     public void startEmulation() {
         pauseButton.setEnabled(true);
+        rewindButton.setEnabled(true);
         
-        stopped = false;
+        machine.start();
         
         if(debugging)
             pause();
@@ -153,55 +211,11 @@ public class Celsior {
         
         startEmulationLoop();
         
-        System.out.println("[INFO] Emulation ended.");
+        Log.info("Emulation ended.");
     }
     
     private void startEmulationLoop() {
-        // Used to ontrol refresh rate. Reset every cyclesPerRefresh cycles
-        int refreshCycles = 0;
-
-        // Variables used to measure time
-        long initTime;
-        long endTime;
-
-        while(!stopped) {
-            while(paused) {}
-            
-            initTime = System.nanoTime();
-
-            // Execute a CPU cycle
-            try {
-                cpu.clock();
-                gpu.clock();
-            } catch (Exception ex) {
-                error(ex.getLocalizedMessage());
-            }
-            
-            if(debugging)
-                cpu.updateDebug();
-            
-            // Refresh the screen
-            if(refreshCycles % (cyclesPerRefresh) == 0) {
-                refreshCycles = 0;
-                refreshScreen();
-            }
-
-            endTime = System.nanoTime();
-            refreshCycles++;
-
-            
-            // Wait some time to simulate real cycle
-            long nanosToWait = periodNanos - (endTime - initTime);
-            long initNanos = System.nanoTime();
-            long targetNanos = initNanos + nanosToWait;
-            while(System.nanoTime() < targetNanos){
-                try {
-                    Thread.sleep(0);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
+        scheduler.run();
     }
     
     /**
@@ -225,11 +239,12 @@ public class Celsior {
         if(f != null) {
             progName = f.getName();
             
-            byte[] bytes = java.nio.file.Files.readAllBytes(f.toPath());
+            machine.load(f.toPath());
             
-            cpu.m.putBytes(0, bytes);
+            if(aot)
+                Aot.load(machine.cpu, machine.getCartridge().head(machine.cpu.m.size()));
             
-            stopped = false;
+            machine.start();
             
             new Thread(() -> {
                 startEmulation();
@@ -241,43 +256,376 @@ public class Celsior {
         setName();
     }
     
+    private JFileChooser stateChooser(String title) {
+        JFileChooser chooser = new JFileChooser(getClass().getProtectionDomain().getCodeSource().getLocation().getPath());
+        chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Celsior Save States (.csav)", "csav"));
+        chooser.setAcceptAllFileFilterUsed(true);
+        chooser.setDialogTitle(title);
+        return chooser;
+    }
+    
+    /**
+     * Asks for a file and saves the machine's state to it, see {@link SaveState}.
+     */
+    public void saveState() {
+        JFileChooser chooser = stateChooser("Save state...");
+        if(chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
+            return;
+        
+        File f = chooser.getSelectedFile();
+        if(!f.getName().contains("."))
+            f = new File(f.getPath() + ".csav");
+        
+        try {
+            SaveState.save(machine, f.toPath());
+            Log.info("Saved state to " + f);
+        } catch (IOException ex) {
+            showError(machine, "Failed to save state: " + ex.getLocalizedMessage());
+        }
+    }
+    
+    /**
+     * Asks for a save state and restores the machine to it, starting the emulation if it was stopped.
+     */
+    public void loadState() {
+        JFileChooser chooser = stateChooser("Load state...");
+        if(chooser.showOpenDialog(null) != JFileChooser.APPROVE_OPTION)
+            return;
+        
+        File f = chooser.getSelectedFile();
+        boolean running = !machine.isStopped();
+        
+        try {
+            stopRecordingInput();
+            SaveState.load(machine, f.toPath());
+            rewind.clear();
+            Log.info("Loaded state from " + f);
+        } catch (IOException ex) {
+            showError(machine, "Failed to load state: " + ex.getLocalizedMessage());
+            return;
+        }
+        
+        if(!running) {
+            progName = f.getName();
+            
+            machine.start();
+            
+            new Thread(() -> {
+                startEmulation();
+            }).start();
+        }
+        
+        setName();
+        redraw();
+    }
+    
+    /**
+     * Winds the machine back a few frames, see {@link Rewind#rewind}. Starts the emulation again if an
+     * error stopped it.
+     */
+    public void rewind() {
+        stopRecordingInput();
+        
+        if(!rewind.rewind()) {
+            Log.info("Nothing to rewind to.");
+            return;
+        }
+        
+        if(machine.isStopped()) {
+            machine.start();
+            
+            new Thread(() -> {
+                startEmulation();
+            }).start();
+        }
+        
+        if(debugging)
+            updateDebug(machine.cpu);
+        
+        setName();
+        redraw();
+    }
+    
+    /**
+     * Undoes the last instruction while paused, see {@link Rewind#stepBack}.
+     */
+    public void stepBack() {
+        stopRecordingInput();
+        
+        if(!rewind.stepBack())
+            Log.info("Nothing to step back to.");
+        
+        updateDebug(machine.cpu);
+        redraw();
+    }
+    
+    /**
+     * Starts recording the input of the running program, see {@link InputRecorder}, or stops recording.
+     * The machine's state is saved next to the script, so the recording can be replayed with
+     * {@code --headless --load-state}.
+     */
+    public void recordInput() {
+        if(inputRecorder != null) {
+            stopRecordingInput();
+            return;
+        }
+        
+        if(machine.isStopped()) {
+            showError(machine, "Load a program to record its input.");
+            return;
+        }
+        
+        JFileChooser chooser = new JFileChooser(getClass().getProtectionDomain().getCodeSource().getLocation().getPath());
+        chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Input scripts (.txt)", "txt"));
+        chooser.setAcceptAllFileFilterUsed(true);
+        chooser.setDialogTitle("Record input...");
+        if(chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
+            return;
+        
+        File f = chooser.getSelectedFile();
+        if(!f.getName().contains("."))
+            f = new File(f.getPath() + ".txt");
+        
+        String name = f.getName();
+        File state = new File(f.getParentFile(), name.substring(0, name.lastIndexOf('.')) + ".csav");
+        
+        try {
+            // nothing may run between saving the state and attaching the recorder
+            synchronized(machine) {
+                SaveState.save(machine, state.toPath());
+                
+                inputRecorder = new InputRecorder(f.toPath(), "Input recorded from " + progName + ", replay with\n"
+                        + "celsior --headless --load-state " + state.getName() + " --input " + name + " " + progName);
+                machine.setInputListener(inputRecorder);
+            }
+        } catch (IOException ex) {
+            showError(machine, "Failed to record input: " + ex.getLocalizedMessage());
+            return;
+        }
+        
+        recordInputItem.setText("Stop recording input");
+        Log.info("Recording input to " + f);
+    }
+    
+    /**
+     * Stops recording input, if it is being recorded. Called before anything that changes the cycle count
+     * other than running, since the recording then no longer matches the run.
+     */
+    private static void stopRecordingInput() {
+        if(inputRecorder == null)
+            return;
+        
+        machine.setInputListener(null);
+        
+        try {
+            synchronized(machine) {
+                inputRecorder.end(machine.cpu.cycles);
+            }
+            
+            inputRecorder.close();
+            Log.info("Stopped recording input.");
+        } catch (IOException ex) {
+            showError(machine, "Failed to record input: " + ex.getLocalizedMessage());
+        }
+        
+        inputRecorder = null;
+        recordInputItem.setText("Record input...");
+    }
+    
+    /**
+     * Starts publishing every frame to a file for other processes, see {@link FrameExport}, or stops.
+     */
+    public void exportFrames() {
+        if(frameExport != null) {
+            frameExport.close();
+            frameExport = null;
+            
+            exportFramesItem.setText("Export frames...");
+            Log.info("Stopped exporting frames.");
+            return;
+        }
+        
+        File shm = new File("/dev/shm");
+        JFileChooser chooser = new JFileChooser(shm.isDirectory() ? shm.getPath() : getClass().getProtectionDomain().getCodeSource().getLocation().getPath());
+        chooser.setSelectedFile(new File(chooser.getCurrentDirectory(), "celsior-frames"));
+        chooser.setDialogTitle("Export frames...");
+        if(chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
+            return;
+        
+        File f = chooser.getSelectedFile();
+        
+        try {
+            frameExport = new FrameExport(f.toPath(), machine);
+        } catch (IOException ex) {
+            showError(machine, "Failed to export frames: " + ex.getLocalizedMessage());
+            return;
+        }
+        
+        exportFramesItem.setText("Stop exporting frames");
+        Log.info("Exporting frames to " + f);
+        
+        // otherwise the scheduler publishes the next frame
+        if(paused || machine.isStopped())
+            publishFrame();
+    }
+    
+    /**
+     * Asks where to save {@code profiler}'s folded stacks, for a flame graph.
+     */
+    private void saveFoldedStacks(Profiler profiler) {
+        JFileChooser chooser = new JFileChooser(getClass().getProtectionDomain().getCodeSource().getLocation().getPath());
+        chooser.setFileFilter(new javax.swing.filechooser.FileNameExtensionFilter("Folded stacks (.folded)", "folded"));
+        chooser.setAcceptAllFileFilterUsed(true);
+        chooser.setDialogTitle("Save folded stacks...");
+        if(chooser.showSaveDialog(null) != JFileChooser.APPROVE_OPTION)
+            return;
+        
+        File f = chooser.getSelectedFile();
+        if(!f.getName().contains("."))
+            f = new File(f.getPath() + ".folded");
+        
+        String root = progName.isEmpty() ? NAME : progName;
+        
+        try {
+            java.nio.file.Files.write(f.toPath(), profiler.folded(machine.cpu.getDispatchTable(), root)
+                    .getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            Log.info("Saved folded stacks to " + f);
+        } catch (IOException ex) {
+            showError(machine, "Failed to save folded stacks: " + ex.getLocalizedMessage());
+        }
+    }
+    
     public void stopEmulation() {
         if(paused)
             pauseButton.doClick();
         
         pauseButton.setEnabled(false);
         stepButton.setEnabled(false);
+        stepBackButton.setEnabled(false);
+        rewindButton.setEnabled(false);
         
-        stopped = true;
-        
-        cpu.reset();
-        gpu.reset();
+        stopRecordingInput();
+        machine.reset();
+        rewind.clear();
+        scheduler.wake();
         
         progName = "";
         
         setName();
-        refreshScreen();
+        redraw();
     }
     
     public static void updateDebugMode(boolean debug) {
         debugging = debug;
+        machine.cpu.setDebugger(debugging ? DEBUGGER : null);
         
         PREFS.putBoolean("celsior_debugmode", debugging);
         
         stepButton.setVisible(debugging);
+        stepBackButton.setVisible(debugging);
         debugFrame.setVisible(debugging);
         
         debugModeMenuItem.setText("Debug mode - " + ("" + debugging).toLowerCase());
     }
+    
+    /**
+     * Runs uncapped while {@code fastForward} is set, see {@link Scheduler#setFastForward}.
+     */
+    public static void setFastForward(boolean fastForward) {
+        instance.scheduler.setFastForward(fastForward);
+    }
+    
+    public static void updateJit(boolean jit) {
+        machine.cpu.setJitEnabled(jit);
+        
+        PREFS.putBoolean("celsior_jit", jit);
+        
+        jitMenuItem.setText("JIT compiler - " + jit);
+        
+        if(!jit && aot)
+            updateAot(false); // AOT compiled blocks run on the JIT
+    }
+    
+    public static void updateMemoryMapped(boolean mmio) {
+        machine.setMemoryMapped(mmio);
+        
+        PREFS.putBoolean("celsior_mmio", mmio);
+        
+        mmioMenuItem.setText("Memory-mapped devices - " + mmio);
+    }
+    
+    public static void updateMode(CPU.Mode mode) {
+        machine.cpu.setMode(mode);
+        
+        PREFS.put("celsior_mode", mode.name());
+        
+        modeMenuItem.setText("Execution mode - " + mode.name().toLowerCase());
+    }
+    
+    public static void updateAot(boolean _aot) {
+        aot = _aot;
+        
+        PREFS.putBoolean("celsior_aot", aot);
+        
+        aotMenuItem.setText("AOT compile on load - " + aot);
+        
+        if(aot && machine.cpu.jit == null)
+            updateJit(true);
+    }
+    
+    public static void updateLogInstructions(boolean log) {
+        logInstructions = log;
+        
+        if(log)
+            machine.cpu.addInstrument(CPU.INSTRUCTION_LOG);
+        else
+            machine.cpu.removeInstrument(CPU.INSTRUCTION_LOG);
+        
+        PREFS.putBoolean("celsior_log_instructions", log);
+        
+        logInstructionsMenuItem.setText("Log instructions - " + log);
+    }
 
+    /**
+     * Called by the scheduler between batches, and once when the emulation is paused.
+     */
+    private void frame() {
+        rewind.tick();
+        publishFrame();
+        refreshScreen();
+    }
+    
+    /**
+     * Publishes the current frame if frames are being exported. Only called between batches or while
+     * paused, and under the machine's lock so changes made from the UI can't be half in it.
+     */
+    private void publishFrame() {
+        FrameExport export = frameExport;
+        if(export == null)
+            return;
+        
+        synchronized(machine) {
+            export.publish();
+        }
+    }
+    
+    /**
+     * Redraws the screen now if no batches are running, for changes made while paused or stopped.
+     * Otherwise the scheduler draws the next frame, so the screen is only ever drawn between batches.
+     */
+    private void redraw() {
+        if(paused || machine.isStopped())
+            refreshScreen();
+    }
+    
     /**
      * Will redraw the contents of the screen to the emulator window.
      */
     private void refreshScreen() {
-        gpu.clock();
+        machine.gpu.clock();
         
         Graphics2D graphics = (Graphics2D) canvas.getBufferStrategy().getDrawGraphics();
-        screen.render();
+        screen.render(machine.gpu);
         
         graphics.drawImage(screen.getBuffer(), null, 0, 0);
         
@@ -307,7 +655,31 @@ public class Celsior {
             }
         });
         
+        JMenuItem saveStateItem = new JMenuItem("Save state...", KeyEvent.VK_S);
+        saveStateItem.addActionListener((ActionEvent e) -> {
+            saveState();
+        });
+        
+        JMenuItem loadStateItem = new JMenuItem("Load state...", KeyEvent.VK_L);
+        loadStateItem.addActionListener((ActionEvent e) -> {
+            loadState();
+        });
+        
+        recordInputItem = new JMenuItem("Record input...", KeyEvent.VK_R);
+        recordInputItem.addActionListener((ActionEvent e) -> {
+            recordInput();
+        });
+        
+        exportFramesItem = new JMenuItem("Export frames...", KeyEvent.VK_E);
+        exportFramesItem.addActionListener((ActionEvent e) -> {
+            exportFrames();
+        });
+        
         fileMenu.add(openFile);
+        fileMenu.add(saveStateItem);
+        fileMenu.add(loadStateItem);
+        fileMenu.add(recordInputItem);
+        fileMenu.add(exportFramesItem);
         
         // CPU Menu
         JMenu cpuMenu = new JMenu("Options");
@@ -336,8 +708,81 @@ public class Celsior {
             updateDebugMode(!debugging);
         });
         
+        jitMenuItem = new JMenuItem("JIT compiler - false", KeyEvent.VK_J);
+        jitMenuItem.addActionListener((ActionEvent e) -> {
+            updateJit(machine.cpu.jit == null);
+        });
+        
+        turboMenuItem = new JMenuItem("Turbo (hold F6) - false", KeyEvent.VK_T);
+        turboMenuItem.addActionListener((ActionEvent e) -> {
+            scheduler.setTurbo(!scheduler.isTurbo());
+            
+            turboMenuItem.setText("Turbo (hold F6) - " + scheduler.isTurbo());
+        });
+        
+        aotMenuItem = new JMenuItem("AOT compile on load - false", KeyEvent.VK_A);
+        aotMenuItem.addActionListener((ActionEvent e) -> {
+            updateAot(!aot);
+        });
+        
+        modeMenuItem = new JMenuItem("Execution mode - bus", KeyEvent.VK_E);
+        modeMenuItem.addActionListener((ActionEvent e) -> {
+            CPU.Mode[] modes = CPU.Mode.values();
+            updateMode(modes[(machine.cpu.getMode().ordinal() + 1) % modes.length]);
+        });
+        
+        pairProfileMenuItem = new JMenuItem("Profile opcode pairs - false", KeyEvent.VK_P);
+        pairProfileMenuItem.addActionListener((ActionEvent e) -> {
+            if(pairProfile == null) {
+                pairProfile = new PairProfile();
+                machine.cpu.addInstrument(pairProfile);
+            } else {
+                machine.cpu.removeInstrument(pairProfile);
+                Log.info(pairProfile.report(machine.cpu.getDispatchTable(), 20));
+                pairProfile = null;
+            }
+            
+            pairProfileMenuItem.setText("Profile opcode pairs - " + (pairProfile != null));
+        });
+        
+        profilerMenuItem = new JMenuItem("Profile execution - false", KeyEvent.VK_R);
+        profilerMenuItem.addActionListener((ActionEvent e) -> {
+            if(profiler == null) {
+                profiler = new Profiler();
+                machine.cpu.addInstrument(profiler);
+                
+                if(machine.cpu.jit != null)
+                    Log.warn("The JIT is on, compiled blocks won't be profiled.");
+            } else {
+                machine.cpu.removeInstrument(profiler);
+                Log.info(profiler.report(machine.cpu.getDispatchTable(), 20));
+                saveFoldedStacks(profiler);
+                profiler = null;
+            }
+            
+            profilerMenuItem.setText("Profile execution - " + (profiler != null));
+        });
+        
+        mmioMenuItem = new JMenuItem("Memory-mapped devices - false", KeyEvent.VK_M);
+        mmioMenuItem.addActionListener((ActionEvent e) -> {
+            updateMemoryMapped(!machine.isMemoryMapped());
+        });
+        
+        logInstructionsMenuItem = new JMenuItem("Log instructions - false", KeyEvent.VK_L);
+        logInstructionsMenuItem.addActionListener((ActionEvent e) -> {
+            updateLogInstructions(!logInstructions);
+        });
+        
         cpuMenu.add(clockSpeed);
         cpuMenu.add(debugModeMenuItem);
+        cpuMenu.add(modeMenuItem);
+        cpuMenu.add(mmioMenuItem);
+        cpuMenu.add(pairProfileMenuItem);
+        cpuMenu.add(profilerMenuItem);
+        cpuMenu.add(logInstructionsMenuItem);
+        cpuMenu.add(jitMenuItem);
+        cpuMenu.add(aotMenuItem);
+        cpuMenu.add(turboMenuItem);
         
         pauseButton = new JButton("Pause");
         pauseButton.addActionListener((ActionEvent e) -> {
@@ -354,22 +799,35 @@ public class Celsior {
         stepButton = new JButton("Step");
         stepButton.addActionListener((ActionEvent e) -> {
             try {
-                if(stopped) {
+                if(machine.isStopped()) {
                     stopEmulation();
                 }
                 
-                cpu.clock();
-                gpu.clock();
+                rewind.tick();
+                machine.clock();
             } catch(Exception ex) {
                 error(ex.getLocalizedMessage());
             }
             
-            refreshScreen();
+            redraw();
+        });
+        
+        stepBackButton = new JButton("Step back");
+        stepBackButton.addActionListener((ActionEvent e) -> {
+            stepBack();
+        });
+        
+        rewindButton = new JButton("Rewind");
+        rewindButton.setEnabled(false);
+        rewindButton.addActionListener((ActionEvent e) -> {
+            rewind();
         });
         
         menuBar.add(fileMenu);
         menuBar.add(cpuMenu);
+        menuBar.add(rewindButton);
         menuBar.add(pauseButton);
+        menuBar.add(stepBackButton);
         menuBar.add(stepButton);
         
         container.add(menuBar);
@@ -387,15 +845,48 @@ public class Celsior {
         stepButton.getActionMap().put("action_step", new AbstractAction() {
             @Override
             public void actionPerformed(ActionEvent e) {
-                if(stopped)
+                if(machine.isStopped())
                     stopEmulation();
                 else
                     stepButton.doClick();
             }
         });
         
+        stepBackButton.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("F7"), "action_step_back");
+        stepBackButton.getActionMap().put("action_step_back", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if(stepBackButton.isEnabled() && stepBackButton.isVisible())
+                    stepBackButton.doClick();
+            }
+        });
+        
+        rewindButton.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("F4"), "action_rewind");
+        rewindButton.getActionMap().put("action_rewind", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if(rewindButton.isEnabled())
+                    rewindButton.doClick();
+            }
+        });
+        
+        // fast-forward while F6 is held
+        menuBar.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("F6"), "action_fastforward");
+        menuBar.getInputMap(JComponent.WHEN_IN_FOCUSED_WINDOW).put(KeyStroke.getKeyStroke("released F6"), "action_fastforward_end");
+        menuBar.getActionMap().put("action_fastforward", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setFastForward(true);
+            }
+        });
+        menuBar.getActionMap().put("action_fastforward_end", new AbstractAction() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                setFastForward(false);
+            }
+        });
         
-        JMenuItem[] itmList = {openFile, clockSpeed, debugModeMenuItem};
+        JMenuItem[] itmList = {openFile, saveStateItem, loadStateItem, recordInputItem, exportFramesItem, clockSpeed, debugModeMenuItem, modeMenuItem, mmioMenuItem, pairProfileMenuItem, profilerMenuItem, logInstructionsMenuItem, jitMenuItem, aotMenuItem, turboMenuItem};
         
         for(JMenuItem itm : itmList)
             setUI(itm);
@@ -502,14 +993,32 @@ public class Celsior {
         canvas.addKeyListener(new Keyboard());
     }
     
-    public static void log(String message) {
-        System.out.println("[INFO] " + message);
+    private static void updateDebug(CPU cpu) {
+        byte[] regs = cpu.regs;
+        
+        debugFrame.update(regs[0], regs[1], regs[2], regs[3], regs[4], regs[5], regs[6], regs[7],
+                    regs[CPU.INPUT], regs[CPU.PC0], regs[CPU.PC1], regs[CPU.FLAGS], regs[CPU.SECRET0], regs[CPU.SECRET1],
+                    cpu.getAddressBusRegister(), cpu.getAddressBus(), cpu.getDataBus(), cpu.progCounter, cpu.stack);
     }
     
+    /**
+     * Stops the machine and shows {@code message} in an error dialog.
+     */
     public static void error(String message) {
-        stopped = true;
-        System.err.println("[ERROR] " + message);
+        machine.error(message);
+    }
+    
+    /**
+     * Logs {@code message} and shows it in a dialog. Errors from the emulation thread arrive holding the
+     * machine's lock, which the UI takes to change settings, so their dialog is shown later on the EDT.
+     */
+    private static void showError(Machine machine, String message) {
+        Log.error(message);
         
-        JOptionPane.showMessageDialog(container, message, NAME, JOptionPane.ERROR_MESSAGE);
+        if(SwingUtilities.isEventDispatchThread())
+            JOptionPane.showMessageDialog(container, message, NAME, JOptionPane.ERROR_MESSAGE);
+        else
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(container, message, NAME,
+                    JOptionPane.ERROR_MESSAGE));
     }
 }
@@ -11,7 +11,7 @@ public class DebugFrame extends javax.swing.JFrame {
     public DebugFrame() {
         initComponents();
         
-        stackView = new StackComponent(Celsior.cpu.stack);
+        stackView = new StackComponent(Celsior.machine.cpu.stack);
         
         jScrollPane2.setViewportView(stackView);
     }
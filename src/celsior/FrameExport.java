@@ -0,0 +1,182 @@
+package celsior;
+
+import celsior.component.GPU;
+import celsior.component.Memory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import sun.misc.Unsafe;
+
+/**
+ * Publishes a machine's GPU memory to a memory-mapped file, usually under {@code /dev/shm}, so viewers,
+ * recorders and test harnesses in other processes can read every frame without it being copied through
+ * a pipe or socket; {@link FrameReader} is the reading side. The file is a {@value #HEADER_SIZE} byte
+ * header followed by the GPU's memory, all little-endian:
+ * <pre>
+ *  0  magic     "CFRM"
+ *  4  version   u16
+ *  6  header    u16, size of the header
+ *  8  sequence  long, odd while a frame is being published
+ * 16  frame     long, number of frames published so far, 0 before the first
+ * 24  cycles    long, the CPU's cycle count at the frame
+ * 32  mode      byte, 1 in graphics mode, 0 in text mode
+ * 36  size      int, bytes of GPU memory after the header
+ * 40  dirty     long, the pages of GPU memory written since the previous frame, page p is bit p
+ * 64  GPU memory: 128x72 pixels of one byte, then 9 rows of 16 characters
+ * </pre>
+ * Frames are published with a seqlock: the sequence is made odd, the frame written, and the sequence made
+ * even again. A reader copies what it needs and then checks that the sequence was even and unchanged the
+ * whole time, retrying otherwise, so it never sees half a frame and never holds up the emulator. Only the
+ * pages of GPU memory written since the previous frame are copied into the file.
+ */
+public final class FrameExport implements Closeable {
+    
+    /** "CFRM" in little-endian. */
+    static final int MAGIC = 0x4D524643;
+    public static final short VERSION = 1;
+    public static final int HEADER_SIZE = 64;
+    
+    static final int SEQUENCE = 8, FRAME = 16, CYCLES = 24, MODE = 32, SIZE = 36, DIRTY = 40;
+    
+    /**
+     * Orders the plain buffer accesses on either side of the sequence updates, which the memory model
+     * doesn't order by itself: a volatile write of an unrelated field doesn't keep later plain writes
+     * from moving before it. Fences need Java 9's VarHandle, or Unsafe before that.
+     */
+    private static final Unsafe UNSAFE;
+    
+    static {
+        try {
+            Field field = Unsafe.class.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            UNSAFE = (Unsafe) field.get(null);
+        } catch (ReflectiveOperationException ex) {
+            throw new ExceptionInInitializerError(ex);
+        }
+    }
+    
+    /** Keeps the writes before it from being reordered with the writes after it. */
+    static void storeFence() {
+        UNSAFE.storeFence();
+    }
+    
+    /** Keeps the reads before it from being reordered with the reads after it, for {@link FrameReader}. */
+    static void loadFence() {
+        UNSAFE.loadFence();
+    }
+    
+    private final Machine machine;
+    private final int size;
+    
+    /** Null once closed. */
+    private ByteBuffer buffer;
+    
+    /** The GPU memory last published, and the pages written to it since. */
+    private Memory memory;
+    private Memory.DirtyPages dirtyPages;
+    private long frame;
+    
+    /**
+     * Creates {@code file}, or reuses it if it exists so readers that still have it mapped keep working,
+     * and publishes an empty header. Nothing is published until {@link #publish} is first called.
+     * @throws IOException if the file can't be created or mapped
+     */
+    public FrameExport(Path file, Machine _machine) throws IOException {
+        machine = _machine;
+        size = machine.gpu.m.size();
+        
+        if(size > 64 * Memory.PAGE_SIZE)
+            throw new IllegalArgumentException("GPU memory has more pages than the dirty bitmap: " + size);
+        
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE + size).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        long sequence = buffer.getLong(SEQUENCE);
+        buffer.putLong(SEQUENCE, sequence | 1);
+        storeFence();
+        
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) HEADER_SIZE);
+        buffer.putLong(FRAME, 0);
+        buffer.putLong(CYCLES, 0);
+        buffer.put(MODE, (byte) 0);
+        buffer.putInt(SIZE, size);
+        buffer.putLong(DIRTY, 0);
+        
+        storeFence();
+        buffer.putLong(SEQUENCE, (sequence | 1) + 1);
+    }
+    
+    /**
+     * Publishes the GPU's memory and mode as the next frame. Call it from the thread running the machine,
+     * or while it is paused, so the frame is one consistent moment of the emulation.
+     */
+    public synchronized void publish() {
+        if(buffer == null)
+            return;
+        
+        GPU gpu = machine.gpu;
+        if(gpu.m != memory) {
+            // reset replaced it, every page starts out dirty
+            if(memory != null)
+                memory.untrackDirtyPages(dirtyPages);
+            
+            memory = gpu.m;
+            dirtyPages = memory.trackDirtyPages();
+        }
+        
+        long[] dirty = dirtyPages.fetchAndClear();
+        long sequence = buffer.getLong(SEQUENCE);
+        
+        buffer.putLong(SEQUENCE, sequence + 1);
+        storeFence();
+        
+        long written = 0;
+        for(int page = 0; page << Memory.PAGE_BITS < size; page++) {
+            if(!Memory.DirtyPages.isDirty(dirty, page))
+                continue;
+            
+            int start = page << Memory.PAGE_BITS;
+            byte[] bytes = memory.getBytes((char) start, (char) Math.min(size, start + Memory.PAGE_SIZE));
+            
+            ByteBuffer view = buffer.duplicate();
+            view.position(HEADER_SIZE + start);
+            view.put(bytes);
+            
+            written |= 1L << page;
+        }
+        
+        buffer.putLong(FRAME, ++frame);
+        buffer.putLong(CYCLES, machine.cpu.cycles);
+        buffer.put(MODE, (byte) (gpu.graphicsMode ? 1 : 0));
+        buffer.putLong(DIRTY, written);
+        
+        storeFence();
+        buffer.putLong(SEQUENCE, sequence + 2);
+    }
+    
+    /** Number of frames published. */
+    public synchronized long getFrame() {
+        return frame;
+    }
+    
+    /**
+     * Stops publishing. The file is left with the last frame for readers.
+     */
+    @Override
+    public synchronized void close() {
+        if(memory != null)
+            memory.untrackDirtyPages(dirtyPages);
+        
+        buffer = null;
+        memory = null;
+    }
+}
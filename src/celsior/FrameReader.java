@@ -0,0 +1,112 @@
+package celsior;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads the frames a {@link FrameExport} publishes, from the same or another process. Reading never
+ * blocks the emulator: a frame that is published while it is being copied is simply copied again.
+ */
+public final class FrameReader {
+    
+    /**
+     * One frame, see {@link FrameExport} for what each field means. Reused from one {@link #read} to
+     * the next.
+     */
+    public static final class Frame {
+        public long frame;
+        public long cycles;
+        public boolean graphicsMode;
+        
+        /**
+         * Pages written since the previous frame, page p is bit p. Only complete if the previous frame was
+         * also read, {@code frame} tells whether any were skipped.
+         */
+        public long dirtyPages;
+        
+        /** The GPU's memory. */
+        public final byte[] memory;
+        
+        private Frame(int size) {
+            memory = new byte[size];
+        }
+    }
+    
+    /** Attempts {@link #read} makes before giving up on a publisher that seems to have died mid-frame. */
+    private static final int MAX_ATTEMPTS = 100_000;
+    
+    private final ByteBuffer buffer;
+    private final int size;
+    
+    /**
+     * Maps {@code file}, which a {@link FrameExport} must have created.
+     * @throws IOException if it can't be mapped or isn't an export of this version
+     */
+    public FrameReader(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if(channel.size() < FrameExport.HEADER_SIZE)
+                throw new IOException(file + " is not a frame export");
+            
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        if(buffer.getInt(0) != FrameExport.MAGIC)
+            throw new IOException(file + " is not a frame export");
+        if(buffer.getShort(4) != FrameExport.VERSION)
+            throw new IOException(file + " is a frame export of version " + buffer.getShort(4) + ", expected " + FrameExport.VERSION);
+        
+        size = buffer.getInt(FrameExport.SIZE);
+        if(size < 0 || buffer.getShort(6) + (long) size > buffer.capacity())
+            throw new IOException(file + " is truncated");
+    }
+    
+    public Frame newFrame() {
+        return new Frame(size);
+    }
+    
+    /**
+     * Copies the newest frame into {@code into}.
+     * @return false if nothing has been published yet, or the publisher never finished a frame while
+     * this tried
+     */
+    public boolean read(Frame into) {
+        int header = buffer.getShort(6);
+        ByteBuffer view = buffer.duplicate();
+        
+        for(int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            long sequence = buffer.getLong(FrameExport.SEQUENCE);
+            if((sequence & 1) != 0) {
+                Thread.yield();
+                continue;
+            }
+            
+            FrameExport.loadFence();
+            
+            long frame = buffer.getLong(FrameExport.FRAME);
+            long cycles = buffer.getLong(FrameExport.CYCLES);
+            boolean graphicsMode = buffer.get(FrameExport.MODE) != 0;
+            long dirtyPages = buffer.getLong(FrameExport.DIRTY);
+            
+            view.clear();
+            view.position(header);
+            view.get(into.memory);
+            
+            FrameExport.loadFence();
+            
+            if(buffer.getLong(FrameExport.SEQUENCE) != sequence)
+                continue;
+            
+            into.frame = frame;
+            into.cycles = cycles;
+            into.graphicsMode = graphicsMode;
+            into.dirtyPages = dirtyPages;
+            return frame != 0;
+        }
+        
+        return false;
+    }
+}
@@ -0,0 +1,372 @@
+package celsior;
+
+import celsior.component.CPU;
+import celsior.component.Memory;
+import celsior.component.Profiler;
+import celsior.jit.Aot;
+import celsior.trace.TraceRecorder;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Runs CASM programs without any window, for batches on machines without a display. Each ROM runs until
+ * it halts (NOP or an error), uses up its cycle budget or runs out of time, and one line of results is
+ * printed for it: how it stopped, the cycle count, MIPS and CRC32 hashes of the registers, memory and
+ * VRAM, so runs can be compared with each other.
+ */
+public final class Headless {
+    
+    /** How often the wall-clock limit is checked, in calls to {@link CPU#clock()}. */
+    private static final int TIME_CHECK_INTERVAL = 4096;
+    
+    private Headless() {}
+    
+    public static final class Options {
+        /** Stop after this many instructions. Compiled blocks may run a few past it. */
+        public long maxCycles = Long.MAX_VALUE;
+        
+        /** Stop after this many milliseconds, 0 for no limit. */
+        public long maxMillis = 0;
+        
+        public CPU.Mode mode = CPU.Mode.BUS;
+        public boolean jit = false;
+        public boolean aot = false;
+        
+        /** Log every executed instruction. */
+        public boolean log = false;
+        
+        /** Map the devices into the address space, see {@link Machine#setMemoryMapped}. */
+        public boolean mmio = false;
+        
+        /** Values to feed the input register, null for none. */
+        public InputScript input;
+        
+        /** File to record a {@link TraceRecorder trace} to, null for none. Runs interpreted, ignoring the JIT. */
+        public Path trace;
+        
+        /**
+         * Where to write a {@link Profiler profile}, null for none: the report goes to this path plus
+         * {@code .txt}, folded stacks to this path plus {@code .folded}. Runs interpreted, ignoring the JIT.
+         */
+        public Path profile;
+        
+        /** {@link SaveState} to resume from instead of starting the ROM from the beginning, null for none. */
+        public Path loadState;
+        
+        /** File to save the machine's state to when the run ends, null for none. */
+        public Path saveState;
+        
+        /**
+         * File to publish the GPU's memory to, see {@link FrameExport}, null for none. A frame is published
+         * {@link Scheduler#FRAMES_PER_SECOND} times a second and when the run ends.
+         */
+        public Path exportFrames;
+        
+        /**
+         * Where the error halting the program is reported as it happens, the log by default. It is in the
+         * {@link Result} either way.
+         */
+        public Machine.ErrorSink errors = Machine.LOG;
+        
+        /**
+         * Parses the option at {@code args[i]}, if it is one of these.
+         * @return the index after the option and its value, or {@code i} if it isn't one of these
+         * @throws ArrayIndexOutOfBoundsException if the option's value is missing
+         * @throws IllegalArgumentException if the value is malformed
+         * @throws IOException if the input script can't be read
+         */
+        public int parse(String[] args, int i) throws IOException {
+            switch(args[i]) {
+                case "--cycles":
+                    maxCycles = Long.parseLong(args[i + 1]);
+                    return i + 2;
+                case "--time":
+                    maxMillis = (long) (Double.parseDouble(args[i + 1]) * 1000);
+                    return i + 2;
+                case "--mode":
+                    mode = CPU.Mode.valueOf(args[i + 1].toUpperCase());
+                    return i + 2;
+                case "--jit":
+                    jit = true;
+                    return i + 1;
+                case "--aot":
+                    aot = true;
+                    return i + 1;
+                case "--log":
+                    log = true;
+                    return i + 1;
+                case "--mmio":
+                    mmio = true;
+                    return i + 1;
+                case "--input":
+                    input = InputScript.read(Paths.get(args[i + 1]));
+                    return i + 2;
+                case "--trace":
+                    trace = Paths.get(args[i + 1]);
+                    return i + 2;
+                case "--profile":
+                    profile = Paths.get(args[i + 1]);
+                    return i + 2;
+                case "--load-state":
+                    loadState = Paths.get(args[i + 1]);
+                    return i + 2;
+                case "--save-state":
+                    saveState = Paths.get(args[i + 1]);
+                    return i + 2;
+                case "--export-frames":
+                    exportFrames = Paths.get(args[i + 1]);
+                    return i + 2;
+                default:
+                    return i;
+            }
+        }
+        
+        /** Usage of the options {@link #parse} understands. */
+        public static final String USAGE = "[--cycles n] [--time seconds] [--mode bus|macro|lockstep] [--jit] [--aot] [--log] [--mmio] [--input script] [--trace file] [--profile prefix] [--load-state file] [--save-state file] [--export-frames file]";
+        
+        public Options copy() {
+            Options copy = new Options();
+            copy.maxCycles = maxCycles;
+            copy.maxMillis = maxMillis;
+            copy.mode = mode;
+            copy.jit = jit;
+            copy.aot = aot;
+            copy.log = log;
+            copy.mmio = mmio;
+            copy.input = input;
+            copy.trace = trace;
+            copy.profile = profile;
+            copy.loadState = loadState;
+            copy.saveState = saveState;
+            copy.exportFrames = exportFrames;
+            copy.errors = errors;
+            return copy;
+        }
+    }
+    
+    public static final class Result {
+        public final String name;
+        
+        /** "halted", "cycles" or "time". */
+        public final String status;
+        
+        /** The error that halted the program, null if it didn't halt. */
+        public final String error;
+        
+        public final long cycles;
+        
+        /** Cycle count the run started at, non-zero when resumed from a save state. */
+        public final long startCycles;
+        
+        public final long nanos;
+        public final int progCounter;
+        public final long registerHash, memoryHash, vramHash;
+        
+        private Result(String _name, String _status, String _error, long _cycles, long _startCycles, long _nanos,
+                int _progCounter, long _registerHash, long _memoryHash, long _vramHash) {
+            name = _name;
+            status = _status;
+            error = _error;
+            cycles = _cycles;
+            startCycles = _startCycles;
+            nanos = _nanos;
+            progCounter = _progCounter;
+            registerHash = _registerHash;
+            memoryHash = _memoryHash;
+            vramHash = _vramHash;
+        }
+        
+        public double mips() {
+            return nanos > 0 ? (cycles - startCycles) * 1000.0 / nanos : 0;
+        }
+        
+        @Override
+        public String toString() {
+            return String.format("rom=%s status=%s cycles=%d time=%.3fs mips=%.2f pc=0x%04X regs=%08x mem=%08x vram=%08x%s",
+                    name, status, cycles, nanos / 1e9, mips(), progCounter, registerHash, memoryHash, vramHash,
+                    error != null ? " error=\"" + error + "\"" : "");
+        }
+    }
+    
+    /**
+     * Runs {@code rom} on a new machine.
+     * @param name name to report the results under
+     * @param rom the ROM file, mapped rather than read (see {@link Machine#load(Path)})
+     * @param options limits and execution settings
+     * @return the state the program stopped in
+     * @throws IOException if the ROM can't be mapped, the trace or profile can't be written or a state
+     * can't be loaded or saved
+     */
+    public static Result run(String name, Path rom, Options options) throws IOException {
+        if(options.trace == null)
+            return run(name, rom, options, null);
+        
+        try(TraceRecorder trace = new TraceRecorder(options.trace)) {
+            return run(name, rom, options, trace);
+        }
+    }
+    
+    private static Result run(String name, Path rom, Options options, TraceRecorder trace) throws IOException {
+        Machine machine = new Machine(options.errors);
+        CPU cpu = machine.cpu;
+        
+        Profiler profiler = options.profile != null ? new Profiler() : null;
+        boolean interpreted = trace != null || profiler != null;
+        
+        cpu.setMode(options.mode);
+        cpu.setJitEnabled(!interpreted && (options.jit || options.aot));
+        machine.setMemoryMapped(options.mmio);
+        if(options.log)
+            cpu.addInstrument(CPU.INSTRUCTION_LOG);
+        if(trace != null)
+            cpu.addInstrument(trace);
+        if(profiler != null)
+            cpu.addInstrument(profiler);
+        
+        machine.load(rom);
+        
+        if(options.loadState != null)
+            SaveState.load(machine, options.loadState);
+        
+        if(options.aot && !interpreted)
+            Aot.load(cpu, machine.getCartridge().head(cpu.m.size()));
+        
+        FrameExport export = options.exportFrames != null ? new FrameExport(options.exportFrames, machine) : null;
+        long frameNanos = 1_000_000_000 / Scheduler.FRAMES_PER_SECOND;
+        
+        machine.start();
+        
+        long startCycles = cpu.cycles;
+        long start = System.nanoTime();
+        long deadline = options.maxMillis > 0 ? start + options.maxMillis * 1_000_000 : Long.MAX_VALUE;
+        String status = "cycles";
+        long nextFrame = start;
+        
+        InputScript input = options.input;
+        int inputIndex = 0;
+        long nextInput = input != null ? input.cycleAt(0) : Long.MAX_VALUE;
+        
+        int untilTimeCheck = TIME_CHECK_INTERVAL;
+        while(cpu.cycles < options.maxCycles) {
+            if(cpu.cycles >= nextInput) {
+                inputIndex = input.apply(machine, inputIndex);
+                nextInput = input.cycleAt(inputIndex);
+            }
+            
+            machine.clock();
+            
+            if(machine.isStopped()) {
+                status = "halted";
+                break;
+            }
+            
+            if(--untilTimeCheck == 0) {
+                untilTimeCheck = TIME_CHECK_INTERVAL;
+                
+                long now = System.nanoTime();
+                if(now >= deadline) {
+                    status = "time";
+                    break;
+                }
+                
+                if(export != null && now >= nextFrame) {
+                    export.publish();
+                    nextFrame = now + frameNanos;
+                }
+            }
+        }
+        
+        long nanos = System.nanoTime() - start;
+        machine.stop();
+        
+        if(export != null) {
+            export.publish();
+            export.close();
+        }
+        
+        if(trace != null)
+            cpu.removeInstrument(trace);
+        
+        if(profiler != null) {
+            cpu.removeInstrument(profiler);
+            writeProfile(profiler, cpu, name, options.profile);
+        }
+        
+        if(options.saveState != null)
+            SaveState.save(machine, options.saveState);
+        
+        CRC32 registers = new CRC32();
+        registers.update(cpu.regs, CPU.R0, CPU.FLAGS + 1);
+        
+        return new Result(name, status, machine.getLastError(), cpu.cycles, startCycles, nanos, cpu.progCounter,
+                registers.getValue(), hash(cpu.m), hash(machine.gpu.m));
+    }
+    
+    private static void writeProfile(Profiler profiler, CPU cpu, String name, Path prefix) throws IOException {
+        Files.write(prefix.resolveSibling(prefix.getFileName() + ".txt"),
+                profiler.report(cpu.getDispatchTable(), 50).getBytes(StandardCharsets.UTF_8));
+        Files.write(prefix.resolveSibling(prefix.getFileName() + ".folded"),
+                profiler.folded(cpu.getDispatchTable(), name).getBytes(StandardCharsets.UTF_8));
+    }
+    
+    private static long hash(Memory memory) {
+        CRC32 crc = new CRC32();
+        for(int i = 0; i < memory.size(); i++)
+            crc.update(memory.getByte(i));
+        
+        return crc.getValue();
+    }
+    
+    /**
+     * Command line entry point, also reached with {@code --headless} as the first argument to
+     * {@link Celsior#main}.
+     */
+    public static void main(String[] args) {
+        Options options = new Options();
+        List<String> roms = new ArrayList<>();
+        
+        try {
+            for(int i = 0; i < args.length; i++) {
+                int next = options.parse(args, i);
+                
+                if(next > i)
+                    i = next - 1;
+                else if(args[i].startsWith("--"))
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                else
+                    roms.add(args[i]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | IOException ex) {
+            System.err.println("[ERROR] " + (ex instanceof ArrayIndexOutOfBoundsException ? "Missing option value" : ex.getMessage()));
+            usage();
+            System.exit(2);
+        }
+        
+        if(roms.isEmpty()) {
+            usage();
+            System.exit(2);
+        }
+        
+        boolean failed = false;
+        for(String rom : roms) {
+            try {
+                System.out.println(run(rom, Paths.get(rom), options));
+            } catch (IOException ex) {
+                System.err.println("[ERROR] Failed to run " + rom + ": " + ex.getLocalizedMessage());
+                failed = true;
+            }
+        }
+        
+        System.exit(failed ? 1 : 0);
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: celsior --headless " + Options.USAGE + " rom.casm...");
+    }
+}
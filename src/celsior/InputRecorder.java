@@ -0,0 +1,84 @@
+package celsior;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Records every value a machine's input register is set to as an {@link InputScript}, stamped with the
+ * cycle it became visible at. Feeding the script back with {@code --headless --input} (after
+ * {@code --load-state} if the recording started mid-run) executes the same instructions with the same
+ * input, so the run ends in the same state. Replay with the JIT off: compiled blocks can't stop at the
+ * exact cycle an event is due.
+ */
+public final class InputRecorder implements Machine.InputListener, Closeable {
+    
+    private final Writer out;
+    private long lastCycle = -1;
+    
+    /** The first write that failed, thrown from {@link #close}. */
+    private IOException failure;
+    
+    /**
+     * Creates or overwrites {@code file}.
+     * @param comment written at the top of the script, for example how to replay it, or null
+     */
+    public InputRecorder(Path file, String comment) throws IOException {
+        out = Files.newBufferedWriter(file, StandardCharsets.UTF_8);
+        
+        if(comment != null) {
+            for(String line : comment.split("\n"))
+                out.write("# " + line + "\n");
+        }
+        
+        out.flush();
+    }
+    
+    /**
+     * Writes one event. Events are rare, so each is flushed at once and survives a crash.
+     */
+    @Override
+    public synchronized void input(long cycle, byte value) {
+        if(failure != null || cycle < lastCycle)
+            return; // a reset went back in time, the script only covers one run
+        
+        lastCycle = cycle;
+        
+        try {
+            out.write(String.format("%d 0x%02X\n", cycle, Byte.toUnsignedInt(value)));
+            out.flush();
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+    
+    /**
+     * Notes the cycle the recording ended at, so a replay can stop there with {@code --cycles}.
+     */
+    public synchronized void end(long cycle) {
+        if(failure != null)
+            return;
+        
+        try {
+            out.write("# ended at cycle " + cycle + "\n");
+            out.flush();
+        } catch (IOException ex) {
+            failure = ex;
+        }
+    }
+    
+    /**
+     * Closes the script. Remove the recorder from the machine first.
+     * @throws IOException if writing an event or closing failed
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        out.close();
+        
+        if(failure != null)
+            throw failure;
+    }
+}
@@ -0,0 +1,125 @@
+package celsior;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Values for the input register, each stamped with the cycle it is set at, so a program can be fed the
+ * same input on every run without a keyboard. Scripts are text files with one {@code cycle value} pair
+ * per line, in cycle order; values are written in decimal, {@code 0x} hex or {@code 0b} binary, with the
+ * bits ordered like {@link celsior.component.CPU#setInput}. Everything after a {@code #} is a comment.
+ * <p>
+ * Compiled blocks can't be interrupted, so with the JIT on a value may be set a few cycles late.
+ */
+public final class InputScript {
+    
+    public final String name;
+    
+    private final long[] cycles;
+    private final byte[] values;
+    
+    public InputScript(String _name, long[] _cycles, byte[] _values) {
+        if(_cycles.length != _values.length)
+            throw new IllegalArgumentException("Got " + _cycles.length + " cycles for " + _values.length + " values");
+        
+        name = _name;
+        cycles = _cycles.clone();
+        values = _values.clone();
+    }
+    
+    public static InputScript read(Path file) throws IOException {
+        return parse(file.getFileName().toString(), Files.readAllLines(file, StandardCharsets.UTF_8));
+    }
+    
+    /**
+     * Parses a script.
+     * @param name name to report the script under
+     * @param lines the script's lines
+     * @return the script
+     * @throws IllegalArgumentException if a line is malformed or goes back in time
+     */
+    public static InputScript parse(String name, List<String> lines) {
+        long[] cycles = new long[lines.size()];
+        byte[] values = new byte[lines.size()];
+        int count = 0;
+        
+        for(int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i);
+            
+            int comment = line.indexOf('#');
+            if(comment >= 0)
+                line = line.substring(0, comment);
+            
+            line = line.trim();
+            if(line.isEmpty())
+                continue;
+            
+            String[] fields = line.split("\\s+");
+            if(fields.length != 2)
+                throw new IllegalArgumentException(name + ":" + (i + 1) + ": expected \"cycle value\"");
+            
+            try {
+                cycles[count] = Long.parseLong(fields[0]);
+                values[count] = (byte) parseValue(fields[1]);
+            } catch (NumberFormatException ex) {
+                throw new IllegalArgumentException(name + ":" + (i + 1) + ": " + ex.getMessage());
+            }
+            
+            if(count > 0 && cycles[count] < cycles[count - 1])
+                throw new IllegalArgumentException(name + ":" + (i + 1) + ": cycles must not decrease");
+            
+            count++;
+        }
+        
+        return new InputScript(name, Arrays.copyOf(cycles, count), Arrays.copyOf(values, count));
+    }
+    
+    private static int parseValue(String value) {
+        int v;
+        if(value.startsWith("0x"))
+            v = Integer.parseInt(value.substring(2), 16);
+        else if(value.startsWith("0b"))
+            v = Integer.parseInt(value.substring(2), 2);
+        else
+            v = Integer.parseInt(value);
+        
+        if(v < 0 || v > 0xFF)
+            throw new NumberFormatException("Input value out of range: " + value);
+        
+        return v;
+    }
+    
+    public int size() {
+        return cycles.length;
+    }
+    
+    /**
+     * Gets the cycle event {@code index} happens at.
+     * @return the cycle, or {@link Long#MAX_VALUE} past the last event
+     */
+    public long cycleAt(int index) {
+        return index < cycles.length ? cycles[index] : Long.MAX_VALUE;
+    }
+    
+    public byte valueAt(int index) {
+        return values[index];
+    }
+    
+    /**
+     * Sets every value that is due by the machine's current cycle, starting at event {@code from}.
+     * @return the index of the first event that isn't due yet
+     */
+    public int apply(Machine machine, int from) {
+        int i = from;
+        while(i < cycles.length && cycles[i] <= machine.cpu.cycles) {
+            machine.setInput(values[i]);
+            i++;
+        }
+        
+        return i;
+    }
+}
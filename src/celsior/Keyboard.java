@@ -32,7 +32,7 @@ public class Keyboard extends java.awt.event.KeyAdapter {
                 break;
         }
         
-        Celsior.cpu.setInput(left, right, up, down, a, d, w, s);
+        Celsior.machine.queueInput(MathUtils.composeByte(left, right, up, down, a, d, w, s));
     }
     
     @Override
@@ -64,7 +64,7 @@ public class Keyboard extends java.awt.event.KeyAdapter {
                 break;
         }
         
-        Celsior.cpu.setInput(left, right, up, down, a, d, w, s);
+        Celsior.machine.queueInput(MathUtils.composeByte(left, right, up, down, a, d, w, s));
     }
     
     boolean w, a, s, d, up, left, down, right;
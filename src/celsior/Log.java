@@ -0,0 +1,198 @@
+package celsior;
+
+import celsior.component.DispatchTable;
+import java.io.PrintStream;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Leveled logging that never blocks the emulation. Events are put into a fixed-size lock-free ring buffer
+ * and printed by a background thread, so logging threads only pay for claiming a slot. Messages below the
+ * current level are dropped before anything is allocated, and executed instructions are logged as packed
+ * numbers rather than strings (see {@link #instruction}). When the ring is full, events are dropped and
+ * counted instead of waiting for the printer.
+ * <p>
+ * The level defaults to {@link Level#INFO} and can be set with {@code -Dcelsior.log=debug} and so on.
+ */
+public final class Log {
+    
+    public enum Level {
+        TRACE, DEBUG, INFO, WARN, ERROR, OFF
+    }
+    
+    private static volatile Level level = Level.INFO;
+    
+    private static final int CAPACITY = 1 << 16;
+    private static final int MASK = CAPACITY - 1;
+    
+    /** Event kinds, in the low byte of each event. */
+    private static final int MESSAGE = 0, INSTRUCTION = 1;
+    
+    /** Packed events: kind, then the level for messages or the opcode and address for instructions. */
+    private static final long[] events = new long[CAPACITY];
+    
+    /** The message string, or the dispatch table naming an instruction's opcode. */
+    private static final Object[] payloads = new Object[CAPACITY];
+    
+    /** Slot i holds sequence number n once event n - 1 has been written to it. */
+    private static final AtomicLongArray published = new AtomicLongArray(CAPACITY);
+    
+    /** Next sequence number to claim. */
+    private static final AtomicLong head = new AtomicLong();
+    
+    /** Next sequence number the printer will print, only written by the printer. */
+    private static volatile long tail;
+    
+    private static final AtomicLong dropped = new AtomicLong();
+    
+    private static volatile Thread printer;
+    
+    static {
+        String property = System.getProperty("celsior.log");
+        if(property != null) {
+            try {
+                level = Level.valueOf(property.toUpperCase());
+            } catch (IllegalArgumentException ex) {
+                System.err.println("[ERROR] Unknown log level \"" + property + "\"");
+            }
+        }
+    }
+    
+    private Log() {}
+    
+    public static Level getLevel() {
+        return level;
+    }
+    
+    public static void setLevel(Level _level) {
+        level = _level;
+    }
+    
+    public static boolean isEnabled(Level _level) {
+        return _level.compareTo(level) >= 0 && level != Level.OFF;
+    }
+    
+    public static void debug(String message) {
+        log(Level.DEBUG, message);
+    }
+    
+    public static void info(String message) {
+        log(Level.INFO, message);
+    }
+    
+    public static void warn(String message) {
+        log(Level.WARN, message);
+    }
+    
+    public static void error(String message) {
+        log(Level.ERROR, message);
+    }
+    
+    public static void log(Level _level, String message) {
+        if(isEnabled(_level))
+            publish(MESSAGE | _level.ordinal() << 8, message);
+    }
+    
+    /**
+     * Logs an executed instruction. This isn't filtered by level: instruction logging is switched on by
+     * attaching {@link celsior.component.CPU#INSTRUCTION_LOG}.
+     * @param names table to get the opcode's mnemonic from when printing
+     * @param address address of the instruction
+     * @param opcode its opcode
+     */
+    public static void instruction(DispatchTable names, int address, byte opcode) {
+        publish(INSTRUCTION | Byte.toUnsignedLong(opcode) << 8 | (long) address << 16, names);
+    }
+    
+    private static void publish(long event, Object payload) {
+        long sequence;
+        do {
+            sequence = head.get();
+            
+            if(sequence - tail >= CAPACITY) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while(!head.compareAndSet(sequence, sequence + 1));
+        
+        int slot = (int) sequence & MASK;
+        events[slot] = event;
+        payloads[slot] = payload;
+        published.lazySet(slot, sequence + 1);
+        
+        if(printer == null)
+            startPrinter();
+    }
+    
+    private static synchronized void startPrinter() {
+        if(printer != null)
+            return;
+        
+        Thread thread = new Thread(Log::printLoop, "Celsior log");
+        thread.setDaemon(true);
+        thread.start();
+        
+        // print whatever is left when the JVM exits
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "Celsior log flush"));
+        
+        printer = thread;
+    }
+    
+    private static void printLoop() {
+        while(true) {
+            if(!drain())
+                LockSupport.parkNanos(1_000_000);
+        }
+    }
+    
+    /**
+     * Prints every event published so far. Called by the printer thread, and on exit.
+     */
+    public static synchronized void flush() {
+        while(drain()) {}
+    }
+    
+    /**
+     * Prints events until the ring is empty.
+     * @return whether anything was printed
+     */
+    private static synchronized boolean drain() {
+        boolean printed = false;
+        
+        long sequence = tail;
+        while(true) {
+            int slot = (int) sequence & MASK;
+            if(published.get(slot) != sequence + 1)
+                break;
+            
+            print(events[slot], payloads[slot]);
+            payloads[slot] = null;
+            
+            sequence++;
+            tail = sequence;
+            printed = true;
+        }
+        
+        long lost = dropped.getAndSet(0);
+        if(lost > 0)
+            System.err.println("[WARN] Log buffer full, dropped " + lost + " events");
+        
+        return printed;
+    }
+    
+    private static void print(long event, Object payload) {
+        if((event & 0xFF) == INSTRUCTION) {
+            byte opcode = (byte) (event >>> 8);
+            int address = (int) (event >>> 16);
+            
+            System.out.println("[INFO] Executed " + ((DispatchTable) payload).name(opcode) + " at 0x"
+                    + Integer.toHexString(address).toUpperCase() + ".");
+        } else {
+            Level messageLevel = Level.values()[(int) (event >>> 8 & 0xFF)];
+            PrintStream out = messageLevel.compareTo(Level.WARN) >= 0 ? System.err : System.out;
+            
+            out.println("[" + messageLevel + "] " + payload);
+        }
+    }
+}
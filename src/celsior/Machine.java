@@ -0,0 +1,394 @@
+package celsior;
+
+import celsior.component.Bus;
+import celsior.component.CPU;
+import celsior.component.Cartridge;
+import celsior.component.GPU;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One emulated computer: its CPU (with memory and input), GPU and where its errors go. Nothing in a
+ * machine is static, so any number of them can run in the same JVM, each on its own thread. Front ends
+ * such as the Swing window in {@link Celsior} or {@link Headless} drive a machine from outside.
+ */
+public final class Machine {
+    
+    /**
+     * Receives the errors a machine reports, after the machine has stopped.
+     */
+    public interface ErrorSink {
+        void error(Machine machine, String message);
+    }
+    
+    /**
+     * Sees every value the input register is set to from outside the program, with the cycle count it
+     * is visible from, see {@link InputRecorder}.
+     */
+    public interface InputListener {
+        void input(long cycle, byte value);
+    }
+    
+    /** Logs errors, see {@link Log#error}. */
+    public static final ErrorSink LOG = (machine, message) -> Log.error(message);
+    
+    /**
+     * Where the devices appear in the address space when memory-mapped, see {@link #setMemoryMapped}:
+     * the GPU's pixels (one byte each, 128 per row) and text (16 characters per row), the input register,
+     * the cycle count as 8 read-only bytes, least significant first, the selected bank of the cartridge
+     * and the 16-bit bank register selecting it, least significant byte first.
+     */
+    public static final int VRAM_ADDRESS = 0xA000, TEXT_ADDRESS = 0xC400, INPUT_ADDRESS = 0xC500, TIMER_ADDRESS = 0xC600,
+            BANK_ADDRESS = 0x8000, BANK_SELECT_ADDRESS = 0xC700;
+    
+    private static final int TEXT_LENGTH = 144, TIMER_LENGTH = 8;
+    
+    public final CPU cpu;
+    public final GPU gpu;
+    
+    private volatile boolean stopped = true;
+    private volatile String lastError;
+    private ErrorSink errorSink;
+    
+    /** Input waiting for the next instruction, -1 for none. */
+    private final AtomicInteger pendingInput = new AtomicInteger(-1);
+    private volatile InputListener inputListener;
+    
+    private boolean memoryMapped;
+    
+    /** The loaded ROM, null for none, and the bank of it the bank window shows. */
+    private Cartridge cartridge;
+    private int bank;
+    
+    public Machine() {
+        this(LOG);
+    }
+    
+    public Machine(ErrorSink _errorSink) {
+        errorSink = _errorSink;
+        cpu = new CPU(this);
+        gpu = new GPU(this);
+    }
+    
+    public void setErrorSink(ErrorSink _errorSink) {
+        errorSink = _errorSink;
+    }
+    
+    /**
+     * @param _inputListener the listener, or null to remove it
+     */
+    public void setInputListener(InputListener _inputListener) {
+        inputListener = _inputListener;
+    }
+    
+    /**
+     * Resets the CPU and GPU, clearing memory and VRAM and removing the cartridge. Leaves the machine
+     * stopped. Stops it before taking the machine's lock, so a {@link #run} in progress returns and
+     * lets go of it.
+     */
+    public void reset() {
+        stopped = true;
+        
+        synchronized(this) {
+            stopped = true;
+            lastError = null;
+            pendingInput.set(-1);
+            cartridge = null;
+            bank = 0;
+            
+            cpu.reset();
+            gpu.reset();
+            
+            if(memoryMapped)
+                mapDevices();
+        }
+    }
+    
+    /**
+     * Maps the GPU's memory, the input register and a timer into the CPU's address space (see
+     * {@link #VRAM_ADDRESS}), so programs can reach them with ordinary loads and stores, or unmaps them.
+     * Off by default, since the regions shadow RAM that existing programs may use. Stays set across
+     * resets.
+     */
+    public synchronized void setMemoryMapped(boolean _memoryMapped) {
+        memoryMapped = _memoryMapped;
+        
+        if(memoryMapped)
+            mapDevices();
+        else
+            cpu.bus.unmapAll();
+    }
+    
+    public boolean isMemoryMapped() {
+        return memoryMapped;
+    }
+    
+    /**
+     * Maps the devices onto the current bus. They look up the GPU's memory on every access, since a
+     * reset replaces it.
+     */
+    private void mapDevices() {
+        Bus bus = cpu.bus;
+        bus.unmapAll();
+        
+        bus.map(VRAM_ADDRESS, gpu.CHAR_START, new Bus.Device() {
+            @Override
+            public byte read(int offset) {
+                return gpu.m.getByte(offset);
+            }
+            
+            @Override
+            public void write(int offset, byte value) {
+                gpu.m.putByte(offset, value);
+            }
+        });
+        
+        bus.map(TEXT_ADDRESS, TEXT_LENGTH, new Bus.Device() {
+            @Override
+            public byte read(int offset) {
+                return offset < TEXT_LENGTH ? gpu.m.getByte(gpu.CHAR_START + offset) : 0;
+            }
+            
+            @Override
+            public void write(int offset, byte value) {
+                if(offset < TEXT_LENGTH)
+                    gpu.m.putByte(gpu.CHAR_START + offset, value);
+            }
+        });
+        
+        bus.map(INPUT_ADDRESS, 1, new Bus.Device() {
+            @Override
+            public byte read(int offset) {
+                return offset == 0 ? cpu.regs[CPU.INPUT] : 0;
+            }
+            
+            @Override
+            public void write(int offset, byte value) {
+                // read-only, like the register
+            }
+        });
+        
+        bus.map(BANK_ADDRESS, Cartridge.BANK_SIZE, new Bus.Device() {
+            @Override
+            public byte read(int offset) {
+                Cartridge c = cartridge;
+                return c != null ? c.read(bank, offset) : 0;
+            }
+            
+            @Override
+            public void write(int offset, byte value) {
+                // ROM
+            }
+        });
+        
+        bus.map(BANK_SELECT_ADDRESS, 2, new Bus.Device() {
+            @Override
+            public byte read(int offset) {
+                return offset < 2 ? (byte) (bank >>> (offset * 8)) : 0;
+            }
+            
+            @Override
+            public void write(int offset, byte value) {
+                if(offset < 2)
+                    bank = bank & ~(0xFF << (offset * 8)) | Byte.toUnsignedInt(value) << (offset * 8);
+            }
+        });
+        
+        bus.map(TIMER_ADDRESS, TIMER_LENGTH, new Bus.Device() {
+            @Override
+            public byte read(int offset) {
+                return offset < TIMER_LENGTH ? (byte) (cpu.cycles >>> (offset * 8)) : 0;
+            }
+            
+            @Override
+            public void write(int offset, byte value) {
+                // read-only
+            }
+        });
+    }
+    
+    /**
+     * Loads a ROM, see {@link #load(Cartridge)}.
+     * @param rom the ROM file's contents
+     * @throws IllegalArgumentException if it isn't a valid size
+     */
+    public void load(byte[] rom) {
+        load(new Cartridge(ByteBuffer.wrap(rom)));
+    }
+    
+    /**
+     * Loads a ROM file without reading it, see {@link Cartridge#map}.
+     */
+    public void load(Path rom) throws IOException {
+        load(Cartridge.map(rom));
+    }
+    
+    /**
+     * Copies as much of a ROM's program into memory as fits and selects bank 0. The rest is only
+     * reachable through the bank window, so a ROM larger than memory needs the devices memory-mapped
+     * (see {@link #setMemoryMapped}). Instructions are always fetched from memory, never from the bank
+     * window.
+     */
+    public void load(Cartridge _cartridge) {
+        cpu.m.putBytes(0, _cartridge.head(cpu.m.size()));
+        
+        cartridge = _cartridge;
+        bank = 0;
+        
+        if(cartridge.programSize() > cpu.m.size() && !memoryMapped)
+            Log.warn("The ROM is larger than memory, turn on memory-mapped devices to reach the rest of it.");
+    }
+    
+    /**
+     * @return the loaded ROM, or null if none has been since the last reset
+     */
+    public Cartridge getCartridge() {
+        return cartridge;
+    }
+    
+    /** The bank of the cartridge the bank window shows. */
+    public int getBank() {
+        return bank;
+    }
+    
+    /**
+     * Selects the bank of the cartridge the bank window shows, as a program does by writing to
+     * {@link #BANK_SELECT_ADDRESS}. Banks past the end of the ROM read as 0.
+     */
+    public void setBank(int _bank) {
+        bank = _bank & 0xFFFF;
+    }
+    
+    public void start() {
+        lastError = null;
+        stopped = false;
+    }
+    
+    public void stop() {
+        stopped = true;
+    }
+    
+    public boolean isStopped() {
+        return stopped;
+    }
+    
+    /**
+     * Gets the message of the error that stopped the machine.
+     * @return the message, or null if no error happened since it was last started
+     */
+    public String getLastError() {
+        return lastError;
+    }
+    
+    /**
+     * Stops the machine and reports {@code message} to its error sink.
+     */
+    public void error(String message) {
+        stopped = true;
+        lastError = message;
+        
+        errorSink.error(this, message);
+    }
+    
+    /**
+     * Executes one instruction, or one block if the JIT has compiled one, reporting anything thrown as an
+     * error.
+     */
+    public void clock() {
+        if(pendingInput.get() >= 0)
+            applyInput();
+        
+        try {
+            cpu.clock();
+            gpu.clock();
+        } catch (Exception ex) {
+            error(String.valueOf(ex.getLocalizedMessage()));
+        }
+    }
+    
+    /**
+     * Executes about {@code cycles} instructions, stopping early if the machine stops. Holds the machine's
+     * lock, so {@link SaveState} never sees it halfway through.
+     * @return the number of instructions executed, blocks run by the JIT count every instruction in them
+     */
+    public synchronized long run(long cycles) {
+        long initCycles = cpu.cycles;
+        
+        while(!stopped && cpu.cycles - initCycles < cycles)
+            clock();
+        
+        return cpu.cycles - initCycles;
+    }
+    
+    /**
+     * The state of a machine at one point in time, kept in memory for {@link Rewind}. Unlike a
+     * {@link SaveState} it shares memory pages with the machine, so it is cheap to take often.
+     */
+    public static final class Snapshot {
+        public final CPU.Snapshot cpu;
+        public final GPU.Snapshot gpu;
+        public final int bank;
+        
+        private Snapshot(CPU.Snapshot _cpu, GPU.Snapshot _gpu, int _bank) {
+            cpu = _cpu;
+            gpu = _gpu;
+            bank = _bank;
+        }
+        
+        public long getCycles() {
+            return cpu.cycles;
+        }
+    }
+    
+    /**
+     * Takes a snapshot, waiting for the instructions the machine is running to finish.
+     */
+    public synchronized Snapshot snapshot() {
+        return new Snapshot(cpu.snapshot(), gpu.snapshot(), bank);
+    }
+    
+    /**
+     * Restores a snapshot taken of this machine since it was last reset. Whether the machine is running
+     * doesn't change.
+     */
+    public synchronized void restore(Snapshot snapshot) {
+        cpu.restore(snapshot.cpu);
+        gpu.restore(snapshot.gpu);
+        bank = snapshot.bank;
+    }
+    
+    public void setInput(boolean left, boolean right, boolean up, boolean down,
+                            boolean a, boolean d, boolean w, boolean s) {
+        setInput(MathUtils.composeByte(left, right, up, down, a, d, w, s));
+    }
+    
+    /**
+     * Sets the input register directly, see {@link CPU#setInput} for the meaning of each bit. Only call
+     * this from the thread running the machine, or while it is stopped or paused; other threads use
+     * {@link #queueInput}.
+     */
+    public void setInput(byte value) {
+        cpu.regs[CPU.INPUT] = value;
+        
+        InputListener listener = inputListener;
+        if(listener != null)
+            listener.input(cpu.cycles, value);
+    }
+    
+    /**
+     * Sets the input register before the next instruction, from any thread. The value then becomes
+     * visible at a well-defined cycle, which is what makes a recorded session replay the same. Only the
+     * latest value is kept if several arrive between two instructions.
+     */
+    public void queueInput(byte value) {
+        pendingInput.set(Byte.toUnsignedInt(value));
+    }
+    
+    private void applyInput() {
+        int value = pendingInput.getAndSet(-1);
+        if(value >= 0)
+            setInput((byte) value);
+    }
+}
@@ -0,0 +1,129 @@
+package celsior;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps recent {@link Machine.Snapshot}s of a machine so it can be wound back while running, or stepped
+ * back one instruction at a time in the debugger. A snapshot is taken every few {@link #tick ticks} and
+ * the oldest are dropped once the ring is full. Since snapshots share the memory pages nobody has written
+ * since (see {@link celsior.component.Memory#snapshot}), each one costs about the pages the program wrote
+ * in between.
+ * <p>
+ * Input isn't recorded: stepping back replays from a snapshot with the input register as it was then.
+ */
+public final class Rewind {
+    
+    /** About a minute at {@link Scheduler#FRAMES_PER_SECOND}, with the default interval. */
+    public static final int DEFAULT_CAPACITY = 300;
+    public static final int DEFAULT_INTERVAL = 5;
+    
+    private final Machine machine;
+    private final int capacity;
+    private final int interval;
+    
+    /** Newest first. */
+    private final ArrayDeque<Machine.Snapshot> snapshots = new ArrayDeque<>();
+    private int ticks;
+    
+    public Rewind(Machine _machine) {
+        this(_machine, DEFAULT_CAPACITY, DEFAULT_INTERVAL);
+    }
+    
+    /**
+     * @param _capacity most snapshots kept
+     * @param _interval ticks between snapshots
+     */
+    public Rewind(Machine _machine, int _capacity, int _interval) {
+        if(_capacity < 1 || _interval < 1)
+            throw new IllegalArgumentException("Capacity and interval must be positive: " + _capacity + ", " + _interval);
+        
+        machine = _machine;
+        capacity = _capacity;
+        interval = _interval;
+    }
+    
+    /**
+     * Counts a frame or a debugger step, taking a snapshot every {@code interval} of them while the
+     * machine is running. The first tick after {@link #clear} always takes one.
+     */
+    public synchronized void tick() {
+        if(machine.isStopped() || ticks++ % interval != 0)
+            return;
+        
+        if(snapshots.size() == capacity)
+            snapshots.removeLast();
+        
+        snapshots.addFirst(machine.snapshot());
+    }
+    
+    /**
+     * Winds the machine back to the newest snapshot taken before now, dropping it.
+     * @return false if there is none
+     */
+    public synchronized boolean rewind() {
+        long cycles = machine.cpu.cycles;
+        while(!snapshots.isEmpty() && snapshots.peekFirst().getCycles() >= cycles)
+            snapshots.removeFirst();
+        
+        if(snapshots.isEmpty())
+            return false;
+        
+        machine.restore(snapshots.removeFirst());
+        ticks = 1; // the next snapshot is a whole interval away
+        return true;
+    }
+    
+    /**
+     * Undoes the last instruction (or fused pair) by restoring the newest snapshot before it and
+     * executing up to it again. Snapshots after that point are dropped. Meant for a paused machine with a
+     * debugger attached, so no JIT block runs past the instruction.
+     * @return false if no snapshot is old enough
+     */
+    public synchronized boolean stepBack() {
+        long cycles = machine.cpu.cycles;
+        while(!snapshots.isEmpty() && snapshots.peekFirst().getCycles() >= cycles)
+            snapshots.removeFirst();
+        
+        if(snapshots.isEmpty())
+            return false;
+        
+        Machine.Snapshot snapshot = snapshots.peekFirst();
+        
+        // find where the last instruction started, a fused pair counts twice
+        machine.restore(snapshot);
+        long previous = machine.cpu.cycles;
+        while(machine.cpu.cycles < cycles) {
+            previous = machine.cpu.cycles;
+            if(!replay())
+                break;
+        }
+        
+        machine.restore(snapshot);
+        while(machine.cpu.cycles < previous && replay());
+        
+        ticks = 1;
+        return true;
+    }
+    
+    /**
+     * Executes one instruction again.
+     * @return false if it threw, which leaves the cycle count where it was
+     */
+    private boolean replay() {
+        long cycles = machine.cpu.cycles;
+        machine.clock();
+        return machine.cpu.cycles != cycles;
+    }
+    
+    /**
+     * Drops every snapshot, for when the machine is reset or loads another state.
+     */
+    public synchronized void clear() {
+        snapshots.clear();
+        ticks = 0;
+    }
+    
+    public synchronized int size() {
+        return snapshots.size();
+    }
+}
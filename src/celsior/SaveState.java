@@ -0,0 +1,142 @@
+package celsior;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Saves and restores the complete state of a {@link Machine}, so a program can be checkpointed and
+ * resumed later, possibly on another host. A state is a {@value #HEADER_SIZE} byte header followed by
+ * the CPU's and GPU's state (see {@link celsior.component.CPU#save} and {@link celsior.component.GPU#save})
+ * and the selected cartridge bank as an int, all little-endian:
+ * <pre>
+ *  0  magic    "CSAV"
+ *  4  version  u16
+ *  6  reserved u16
+ *  8  length   int, of what follows the header
+ * 12  checksum CRC32 of what follows the header
+ * </pre>
+ * Settings such as the execution mode or the JIT aren't part of the state, and neither is the ROM: load
+ * the same one before reading a state that uses banks. Version 1 states have no bank and read as bank 0.
+ */
+public final class SaveState {
+    
+    /** "CSAV" in little-endian. */
+    private static final int MAGIC = 0x56415343;
+    public static final short VERSION = 2;
+    private static final int HEADER_SIZE = 16;
+    
+    /** Size of the bank, the part of the state version 1 doesn't have. */
+    private static final int BANK_SIZE = 4;
+    
+    private SaveState() {}
+    
+    /**
+     * Writes the state of {@code machine}, waiting for the instructions it is running to finish.
+     */
+    public static void write(Machine machine, WritableByteChannel out) throws IOException {
+        ByteBuffer buffer;
+        int length;
+        
+        synchronized(machine) {
+            length = machine.cpu.stateSize() + machine.gpu.stateSize() + BANK_SIZE;
+            buffer = ByteBuffer.allocate(HEADER_SIZE + length).order(ByteOrder.LITTLE_ENDIAN);
+            
+            buffer.position(HEADER_SIZE);
+            machine.cpu.save(buffer);
+            machine.gpu.save(buffer);
+            buffer.putInt(machine.getBank());
+        }
+        
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER_SIZE, length);
+        
+        buffer.putInt(0, MAGIC);
+        buffer.putShort(4, VERSION);
+        buffer.putShort(6, (short) 0);
+        buffer.putInt(8, length);
+        buffer.putInt(12, (int) crc.getValue());
+        
+        buffer.flip();
+        while(buffer.hasRemaining())
+            out.write(buffer);
+    }
+    
+    /**
+     * Restores {@code machine} to a state written by {@link #write}. The state is read and checked
+     * completely before the machine is touched, so the machine is left as it was if this throws. Whether
+     * the machine is running doesn't change.
+     * @throws IOException if the state can't be read, is damaged, or is from another version
+     */
+    public static void read(Machine machine, ReadableByteChannel in) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, header);
+        
+        if(header.getInt(0) != MAGIC)
+            throw new IOException("Not a save state");
+        short version = header.getShort(4);
+        if(version != VERSION && version != 1)
+            throw new IOException("Save state has version " + version + ", expected " + VERSION);
+        
+        int length = header.getInt(8);
+        int expected = machine.cpu.stateSize() + machine.gpu.stateSize() + (version == 1 ? 0 : BANK_SIZE);
+        if(length != expected)
+            throw new IOException("Save state has " + length + " bytes, expected " + expected);
+        
+        ByteBuffer state = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        readFully(in, state);
+        
+        CRC32 crc = new CRC32();
+        crc.update(state.array(), 0, length);
+        if((int) crc.getValue() != header.getInt(12))
+            throw new IOException("Save state is damaged, checksum mismatch");
+        
+        state.flip();
+        try {
+            synchronized(machine) {
+                machine.cpu.restore(state);
+                machine.gpu.restore(state);
+                machine.setBank(version == 1 ? 0 : state.getInt());
+            }
+        } catch (IllegalArgumentException ex) {
+            throw new IOException("Save state doesn't fit this machine: " + ex.getMessage(), ex);
+        }
+    }
+    
+    private static void readFully(ReadableByteChannel in, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(in.read(buffer) < 0)
+                throw new EOFException("Save state is truncated");
+        }
+    }
+    
+    /**
+     * Saves the state of {@code machine} to {@code file}. The file is replaced in one step, so an
+     * interrupted save leaves the previous state intact.
+     */
+    public static void save(Machine machine, Path file) throws IOException {
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        
+        try(FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            write(machine, channel);
+        }
+        
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+    
+    public static void load(Machine machine, Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            read(machine, channel);
+        }
+    }
+}
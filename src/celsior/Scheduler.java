@@ -0,0 +1,196 @@
+package celsior;
+
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Runs the emulator at a fixed clock frequency without keeping a core busy. Instructions are executed
+ * in batches of one frame's worth of cycles, and the thread parks until the time the batch should have
+ * taken has passed. Deadlines are measured from a fixed starting point rather than from the previous
+ * batch, so rounding and late wake-ups don't add up over a long run. While paused the thread parks until
+ * it is resumed.
+ * <p>
+ * In turbo mode nothing is throttled and instructions run as fast as the host allows. Frames are only
+ * drawn when due, and in both modes frames are skipped while the emulation is behind schedule. The frame
+ * callback is the only thing drawing while batches run, and it is also called once on pausing.
+ */
+public final class Scheduler {
+    
+    /**
+     * Whatever the scheduler runs, normally the CPU and GPU.
+     */
+    public interface Target {
+        /**
+         * Runs about {@code cycles} instructions, fewer if the emulation stops.
+         * @return the number of instructions actually executed
+         */
+        long run(long cycles);
+    }
+    
+    /** Batches per second, which is also how often the screen is refreshed. */
+    public static final int FRAMES_PER_SECOND = 25;
+    
+    private static final long FRAME_NANOS = 1_000_000_000 / FRAMES_PER_SECOND;
+    
+    /** Frames are drawn at least this often, even when behind schedule. */
+    private static final long MAX_FRAME_INTERVAL_NANOS = 4 * FRAME_NANOS;
+    
+    /**
+     * Most instructions run between two checks of the clock, so the screen keeps updating at high
+     * frequencies and in turbo mode.
+     */
+    private static final long MAX_BATCH = 1 << 16;
+    
+    /** How far the emulation may fall behind before it stops trying to catch up. */
+    private static final long MAX_LAG_NANOS = 250_000_000;
+    
+    private final Target target;
+    private final Runnable frame;
+    private final BooleanSupplier stopped;
+    
+    private volatile double nanosPerCycle;
+    private volatile long cyclesPerBatch;
+    
+    private volatile boolean paused;
+    private volatile boolean turbo;
+    private volatile boolean fastForward;
+    
+    /** Set whenever the schedule has to start over, after a pause, a frequency change or leaving turbo mode. */
+    private volatile boolean reanchor = true;
+    
+    private volatile Thread thread;
+    
+    /**
+     * @param _target runs the instructions
+     * @param _frame called between batches, on the running thread, for example to refresh the screen
+     * @param _stopped tells when to stop running
+     * @param frequency instructions per second
+     */
+    public Scheduler(Target _target, Runnable _frame, BooleanSupplier _stopped, int frequency) {
+        target = _target;
+        frame = _frame;
+        stopped = _stopped;
+        setFrequency(frequency);
+    }
+    
+    public void setFrequency(int frequency) {
+        nanosPerCycle = 1e9 / frequency;
+        cyclesPerBatch = Math.min(MAX_BATCH, Math.max(1, frequency / FRAMES_PER_SECOND));
+        reanchor = true;
+    }
+    
+    public boolean isTurbo() {
+        return turbo;
+    }
+    
+    /**
+     * Switches turbo mode, running as fast as possible instead of at the set frequency.
+     */
+    public void setTurbo(boolean _turbo) {
+        turbo = _turbo;
+        reanchor = true;
+        wake();
+    }
+    
+    /**
+     * Runs in turbo mode while {@code _fastForward} is set, for example while a key is held, without
+     * changing {@link #isTurbo()}.
+     */
+    public void setFastForward(boolean _fastForward) {
+        fastForward = _fastForward;
+        reanchor = true;
+        wake();
+    }
+    
+    public boolean isPaused() {
+        return paused;
+    }
+    
+    public void pause() {
+        paused = true;
+    }
+    
+    public void resume() {
+        paused = false;
+        reanchor = true;
+        wake();
+    }
+    
+    /**
+     * Wakes the running thread, for example so it notices it was stopped.
+     */
+    public void wake() {
+        Thread t = thread;
+        if(t != null)
+            LockSupport.unpark(t);
+    }
+    
+    /**
+     * Runs batches on the calling thread until the emulation is stopped.
+     */
+    public void run() {
+        thread = Thread.currentThread();
+        
+        long anchorNanos = 0;
+        long cyclesSinceAnchor = 0;
+        long lastFrame = System.nanoTime();
+        
+        try {
+            while(!stopped.getAsBoolean()) {
+                if(paused) {
+                    // show where the emulation stopped before waiting
+                    frame.run();
+                    lastFrame = System.nanoTime();
+                    
+                    while(paused && !stopped.getAsBoolean())
+                        LockSupport.park(this);
+                }
+                
+                if(turbo || fastForward) {
+                    target.run(MAX_BATCH);
+                    
+                    long now = System.nanoTime();
+                    if(now - lastFrame >= FRAME_NANOS) {
+                        frame.run();
+                        lastFrame = now;
+                    }
+                    
+                    continue;
+                }
+                
+                if(reanchor) {
+                    reanchor = false;
+                    anchorNanos = System.nanoTime();
+                    cyclesSinceAnchor = 0;
+                }
+                
+                cyclesSinceAnchor += target.run(cyclesPerBatch);
+                
+                long deadline = anchorNanos + (long) (cyclesSinceAnchor * nanosPerCycle);
+                long now = System.nanoTime();
+                
+                // skip drawing while behind, unless the screen hasn't changed for too long
+                boolean behind = now > deadline;
+                if((!behind && now - lastFrame >= FRAME_NANOS / 2) || now - lastFrame >= MAX_FRAME_INTERVAL_NANOS) {
+                    frame.run();
+                    lastFrame = now;
+                    now = System.nanoTime();
+                }
+                
+                if(now - deadline > MAX_LAG_NANOS) {
+                    // too slow to keep up (or the host stalled), carry on from here instead of bursting
+                    anchorNanos = now;
+                    cyclesSinceAnchor = 0;
+                    continue;
+                }
+                
+                while(now < deadline && !paused && !reanchor && !turbo && !fastForward && !stopped.getAsBoolean()) {
+                    LockSupport.parkNanos(this, deadline - now);
+                    now = System.nanoTime();
+                }
+            }
+        } finally {
+            thread = null;
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package celsior;
 
+import celsior.component.GPU;
+import celsior.component.Memory;
 import java.awt.*;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
@@ -10,6 +12,11 @@ public class Screen {
     private BufferedImage buffer;
     private int scale;
     private Font font;
+    
+    /** The GPU memory last rendered, and the pages written to it since. */
+    private Memory memory;
+    private Memory.DirtyPages dirtyPages;
+    private boolean graphicsMode;
 
     /** Create a Screen object with a default scale of 10. */
     public Screen() {
@@ -59,29 +66,45 @@ public class Screen {
                 BufferedImage.TYPE_4BYTE_ABGR);
     }
     
-    public void render() {
+    /**
+     * Draws the GPU's memory into the back buffer. Only the pages written since the last call are
+     * redrawn, everything is when the GPU was reset or switched modes.
+     */
+    public synchronized void render(GPU gpu) {
+        boolean full = gpu.m != memory || gpu.graphicsMode != graphicsMode;
+        if(gpu.m != memory) {
+            if(memory != null)
+                memory.untrackDirtyPages(dirtyPages);
+            
+            memory = gpu.m;
+            dirtyPages = memory.trackDirtyPages();
+        }
+        graphicsMode = gpu.graphicsMode;
+        
+        long[] dirty = dirtyPages.fetchAndClear();
+        int textPage = gpu.CHAR_START >>> Memory.PAGE_BITS;
+        
         Graphics2D g = buffer.createGraphics();
-        g.setColor(new Color(0, 0, 0));
-        g.fillRect(0, 0, 128 * scale, 72 * scale);
-        
-        if(Celsior.gpu.graphicsMode) {
-            for(int y = 0; y < 72; y++) {
-                for(int x = 0; x < 128; x++) {
-                    Color c = getColor(Celsior.gpu.m.getByte(y * 128 + x));
-                    g.setColor(c);
-                    g.fillRect(x * scale, y * scale, scale, scale);
-                }
+        
+        if(graphicsMode) {
+            // every pixel is drawn over, no need to clear first
+            for(int page = 0; page < textPage; page++) {
+                if(full || Memory.DirtyPages.isDirty(dirty, page))
+                    renderPixels(g, page);
             }
-        } else {
-            row0 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 0  ), (char) (Celsior.gpu.CHAR_START + 16 )));
-            row1 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 16 ), (char) (Celsior.gpu.CHAR_START + 32 )));
-            row2 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 32 ), (char) (Celsior.gpu.CHAR_START + 48 )));
-            row3 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 48 ), (char) (Celsior.gpu.CHAR_START + 64 )));
-            row4 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 64 ), (char) (Celsior.gpu.CHAR_START + 80 )));
-            row5 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 80 ), (char) (Celsior.gpu.CHAR_START + 96)));
-            row6 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 96 ), (char) (Celsior.gpu.CHAR_START + 112)));
-            row7 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 112), (char) (Celsior.gpu.CHAR_START + 128)));
-            row8 = toChar(Celsior.gpu.m.getBytes((char) (Celsior.gpu.CHAR_START + 128), (char) (Celsior.gpu.CHAR_START + 144)));
+        } else if(full || Memory.DirtyPages.isDirty(dirty, textPage)) {
+            g.setColor(new Color(0, 0, 0));
+            g.fillRect(0, 0, 128 * scale, 72 * scale);
+            
+            row0 = toChar(memory.getBytes((char) (gpu.CHAR_START + 0  ), (char) (gpu.CHAR_START + 16 )));
+            row1 = toChar(memory.getBytes((char) (gpu.CHAR_START + 16 ), (char) (gpu.CHAR_START + 32 )));
+            row2 = toChar(memory.getBytes((char) (gpu.CHAR_START + 32 ), (char) (gpu.CHAR_START + 48 )));
+            row3 = toChar(memory.getBytes((char) (gpu.CHAR_START + 48 ), (char) (gpu.CHAR_START + 64 )));
+            row4 = toChar(memory.getBytes((char) (gpu.CHAR_START + 64 ), (char) (gpu.CHAR_START + 80 )));
+            row5 = toChar(memory.getBytes((char) (gpu.CHAR_START + 80 ), (char) (gpu.CHAR_START + 96)));
+            row6 = toChar(memory.getBytes((char) (gpu.CHAR_START + 96 ), (char) (gpu.CHAR_START + 112)));
+            row7 = toChar(memory.getBytes((char) (gpu.CHAR_START + 112), (char) (gpu.CHAR_START + 128)));
+            row8 = toChar(memory.getBytes((char) (gpu.CHAR_START + 128), (char) (gpu.CHAR_START + 144)));
             
             g.setFont(font);
             g.setColor(Color.white);
@@ -100,6 +123,18 @@ public class Screen {
         g.dispose();
     }
     
+    /**
+     * Draws the pixels in one page of VRAM, two rows of 128.
+     */
+    private void renderPixels(Graphics2D g, int page) {
+        int start = page << Memory.PAGE_BITS;
+        
+        for(int i = start; i < start + Memory.PAGE_SIZE; i++) {
+            g.setColor(getColor(memory.getByte(i)));
+            g.fillRect((i & 127) * scale, (i >>> 7) * scale, scale, scale);
+        }
+    }
+    
     private char[] toChar(byte[] in) {
         char[] ret = new char[in.length];
         for(int i = 0; i < in.length; i++) {
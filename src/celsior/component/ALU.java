@@ -1,117 +1,117 @@
 package celsior.component;
 
 import static celsior.MathUtils.composeByte;
+import static celsior.component.CPU.ALU0;
+import static celsior.component.CPU.ALU1;
+import static celsior.component.CPU.ALU2;
 
+/** Operates on the ALU0-ALU2 slots of the CPU's register file: ALU2 = ALU0 (op) ALU1. */
 public class ALU {
-    public Register r0, r1, r2;
+    private final byte[] regs;
     
-    public ALU() {
-        r0 = new Register(11);
-        r1 = new Register(12);
-        r2 = new Register(13);
+    public ALU(byte[] _regs) {
+        regs = _regs;
     }
     
     /** ALU Compare | 00000000 | unused, unused, not equal, less or equal, less, greater equal, greater, equal */
     public void auc() {
         aue();
-        boolean equal = r2.getVal() == 1;
+        boolean equal = regs[ALU2] == 1;
         
         aug();
-        boolean greater = r2.getVal() == 1;
+        boolean greater = regs[ALU2] == 1;
         
         aul();
-        boolean less = r2.getVal() == 1;
+        boolean less = regs[ALU2] == 1;
         
         age();
-        boolean greater_equal = r2.getVal() == 1;
+        boolean greater_equal = regs[ALU2] == 1;
         
         ale();
-        boolean less_equal = r2.getVal() == 1;
+        boolean less_equal = regs[ALU2] == 1;
         
         boolean not_equal = !equal;
         
         byte b = composeByte(equal, greater, less, greater_equal, less_equal, not_equal, false, false);
         
-        r2.setVal(b);
+        regs[ALU2] = b;
+    }
+    
+    /**
+     * The flags {@link #auc()} produces for {@code a} and {@code b}, computed directly: unused, unused,
+     * not equal, less or equal, less, greater equal, greater, equal.
+     */
+    public static byte compare(byte a, byte b) {
+        if(a == b)
+            return 0b011001;
+        else if(a > b)
+            return 0b101010;
+        else
+            return 0b110100;
     }
     
     // ALU Add
     public void aua() {
-        r2.setVal(r0.getVal() + r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] + regs[ALU1]);
     }
     
     // ALU Subtract
     public void aus() {
-        r2.setVal(r0.getVal() - r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] - regs[ALU1]);
     }
     
     // ALU Multiply
     public void aum() {
-        r2.setVal(r0.getVal() * r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] * regs[ALU1]);
     }
     
     // ALU XOR
     public void aux() {
-        r2.setVal(r0.getVal() ^ r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] ^ regs[ALU1]);
     }
     
     // ALU OR
     public void aur() {
-        r2.setVal(r0.getVal() | r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] | regs[ALU1]);
     }
     
     // ALU AND
     public void aud() {
-        r2.setVal(r0.getVal() & r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] & regs[ALU1]);
     }
     
     // ALU NOT
     public void aun() {
-        r2.setVal(~r0.getVal());
+        regs[ALU2] = (byte) ~regs[ALU0];
     }
     
     // ALU RSFT
     public void rsft() {
-        r2.setVal(r0.getVal() >>> r1.getVal());
+        regs[ALU2] = (byte) (regs[ALU0] >>> regs[ALU1]);
     }
     
     // ALU Equals
     private void aue() {
-        if(r0.getVal() == r1.getVal())
-            r2.setVal(1);
-        else
-            r2.setVal(0);
+        regs[ALU2] = (byte) (regs[ALU0] == regs[ALU1] ? 1 : 0);
     }
     
     // ALU Greater Than
     private void aug() {
-        if(r0.getVal() > r1.getVal())
-            r2.setVal(1);
-        else
-            r2.setVal(0);
+        regs[ALU2] = (byte) (regs[ALU0] > regs[ALU1] ? 1 : 0);
     }
     
     // ALU Less Than
     public void aul() {
-        if(r0.getVal() < r1.getVal())
-            r2.setVal(1);
-        else
-            r2.setVal(0);
+        regs[ALU2] = (byte) (regs[ALU0] < regs[ALU1] ? 1 : 0);
     }
     
     // ALU Greater Than Or Equal To
     public void age() {
-        if(r0.getVal() >= r1.getVal())
-            r2.setVal(1);
-        else
-            r2.setVal(0);
+        regs[ALU2] = (byte) (regs[ALU0] >= regs[ALU1] ? 1 : 0);
     }
     
     // ALU Less Than Or Equal To
     public void ale() {
-        if(r0.getVal() <= r1.getVal())
-            r2.setVal(1);
-        else
-            r2.setVal(0);
+        regs[ALU2] = (byte) (regs[ALU0] <= regs[ALU1] ? 1 : 0);
     }
 }
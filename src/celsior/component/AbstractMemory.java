@@ -0,0 +1,103 @@
+package celsior.component;
+
+import celsior.Log;
+import java.util.Arrays;
+
+/**
+ * What every kind of {@link Memory} shares: the size, the write listener and the dirty page trackers.
+ */
+abstract class AbstractMemory implements Memory {
+    
+    static final int PAGE_MASK = PAGE_SIZE - 1;
+    
+    /** Whether {@link Memory#allocate} creates {@link DirectMemory}, read from the system property once. */
+    static final boolean DIRECT = direct();
+    
+    private static boolean direct() {
+        String backend = System.getProperty("celsior.memory", "heap");
+        if(!backend.equals("heap") && !backend.equals("direct"))
+            Log.warn("Unknown memory backend \"" + backend + "\", using heap");
+        
+        return backend.equals("direct");
+    }
+    
+    protected final int size;
+    
+    private WriteListener listener;
+    
+    /** Replaced rather than changed, so writes can read it without locking. */
+    private volatile DirtyPages[] trackers = new DirtyPages[0];
+    
+    protected AbstractMemory(int _size) {
+        size = _size;
+    }
+    
+    protected int pageCount() {
+        return (size + PAGE_MASK) >>> PAGE_BITS;
+    }
+    
+    @Override
+    public void setWriteListener(WriteListener listener) {
+        this.listener = listener;
+    }
+    
+    @Override
+    public synchronized DirtyPages trackDirtyPages() {
+        DirtyPages tracker = new DirtyPages(pageCount());
+        
+        DirtyPages[] more = Arrays.copyOf(trackers, trackers.length + 1);
+        more[trackers.length] = tracker;
+        trackers = more;
+        
+        return tracker;
+    }
+    
+    @Override
+    public synchronized void untrackDirtyPages(DirtyPages tracker) {
+        DirtyPages[] fewer = new DirtyPages[trackers.length];
+        int n = 0;
+        for(DirtyPages t : trackers) {
+            if(t != tracker)
+                fewer[n++] = t;
+        }
+        
+        trackers = Arrays.copyOf(fewer, n);
+    }
+    
+    /**
+     * Marks {@code page} dirty for every tracker, after it has been written.
+     */
+    protected final void dirty(int page) {
+        DirtyPages[] t = trackers;
+        for(int i = 0; i < t.length; i++)
+            t[i].mark(page);
+    }
+    
+    /**
+     * Notifies the write listener, after {@code length} bytes from {@code address} have been written.
+     */
+    protected final void written(int address, int length) {
+        if(listener != null)
+            listener.written(address, length);
+    }
+    
+    @Override
+    public void putByte(int address, int b) {
+        putByte((char) address, (byte) b);
+    }
+    
+    @Override
+    public byte getByte(int address) {
+        return getByte((char) address);
+    }
+    
+    @Override
+    public int size() {
+        return size;
+    }
+    
+    @Override
+    public int stateSize() {
+        return 4 + size;
+    }
+}
@@ -0,0 +1,92 @@
+package celsior.component;
+
+import java.util.Arrays;
+
+/**
+ * The CPU's view of its 64kb address space: RAM, with devices mapped over some of it a page at a time.
+ * Every data access goes through a table with one entry per page, so pages without a device cost one
+ * array load and go straight to the RAM {@link Memory}; pages with one are handed to the device.
+ * Devices shadow the RAM under them.
+ * <p>
+ * Instructions are always fetched from RAM (see {@link DecodeCache}), so code can't run from a device.
+ */
+public final class Bus {
+    
+    /** Reads and writes the addresses a {@link Bus} maps to it. */
+    public interface Device {
+        /**
+         * Must not have side effects: the debugger, traces and lockstep mode read device addresses too.
+         * @param offset the address minus the start of the device's region
+         */
+        byte read(int offset);
+        
+        void write(int offset, byte value);
+    }
+    
+    public static final int PAGE_BITS = Memory.PAGE_BITS;
+    public static final int PAGE_SIZE = Memory.PAGE_SIZE;
+    
+    private final Memory ram;
+    
+    /** Device for each page, null for RAM. */
+    private final Device[] devices;
+    
+    /** Start of the region each device page belongs to. */
+    private final int[] starts;
+    
+    public Bus(Memory _ram) {
+        ram = _ram;
+        devices = new Device[(ram.size() + PAGE_SIZE - 1) >>> PAGE_BITS];
+        starts = new int[devices.length];
+    }
+    
+    /**
+     * Maps {@code device} over the pages from {@code start} to {@code start + length}, replacing anything
+     * mapped there. The device sees offsets up to the end of the last page, even past {@code length}.
+     * @throws IllegalArgumentException if {@code start} isn't at the start of a page or the region is
+     * outside memory
+     */
+    public void map(int start, int length, Device device) {
+        if((start & (PAGE_SIZE - 1)) != 0 || length <= 0 || start + length > ram.size())
+            throw new IllegalArgumentException("Can't map " + length + " bytes at 0x" + Integer.toHexString(start));
+        
+        for(int page = start >>> PAGE_BITS; page << PAGE_BITS < start + length; page++) {
+            devices[page] = device;
+            starts[page] = start;
+        }
+    }
+    
+    /**
+     * Removes every device, leaving plain RAM.
+     */
+    public void unmapAll() {
+        Arrays.fill(devices, null);
+    }
+    
+    /**
+     * Whether a device is mapped at {@code address}.
+     */
+    public boolean isMapped(int address) {
+        return devices[(address & 0xFFFF) >>> PAGE_BITS] != null;
+    }
+    
+    public byte read(int address) {
+        address &= 0xFFFF;
+        
+        Device device = devices[address >>> PAGE_BITS];
+        if(device == null)
+            return ram.getByte(address);
+        
+        return device.read(address - starts[address >>> PAGE_BITS]);
+    }
+    
+    public void write(int address, byte value) {
+        address &= 0xFFFF;
+        
+        Device device = devices[address >>> PAGE_BITS];
+        if(device == null)
+            ram.putByte(address, value);
+        else
+            device.write(address - starts[address >>> PAGE_BITS], value);
+    }
+}
@@ -1,207 +1,401 @@
 package celsior.component;
 
-import celsior.Celsior;
+import celsior.Log;
+import celsior.Machine;
+import celsior.jit.Jit;
+import java.nio.ByteBuffer;
 import static celsior.MathUtils.*;
 
 public final class CPU {
     public Memory m;
+    
+    /** Where loads and stores go: {@link #m}, with any devices mapped over it. */
+    public Bus bus;
     public ALU alu;
     
     public Memory h0, h1;
     public Stack stack;
     
-    private Register r0, r1, r2, r3,
-            r4, r5, r6, r7;
-    
-    private Register input;
+    public DecodeCache decodeCache;
     
-    private Register pc0, pc1, flags;
+    /** Compiles hot blocks, null when running interpreted only. */
+    public Jit jit;
+    private boolean jitEnabled = false;
     
-    private Register secret0, secret1;
+    /**
+     * Every 8-bit register, indexed by register id. Ids 0-8 are the ones programs can address (with 10
+     * meaning the stack instead); the rest are internal.
+     */
+    public final byte[] regs = new byte[REGISTER_COUNT];
     
-    private Register16 abr;
+    public static final int R0 = 0, R7 = 7, INPUT = 8, FLAGS = 9, STACK = 10,
+            PC0 = 11, PC1 = 12, SECRET0 = 13, SECRET1 = 14,
+            ABR0 = 15, ABR1 = 16, // left and right byte of the address bus register
+            ALU0 = 17, ALU1 = 18, ALU2 = 19,
+            REGISTER_COUNT = 20;
     
     public int progCounter = 0x00;
     
+    /** How instructions are executed, see {@link Mode}. */
+    private Mode mode = Mode.BUS;
+    
+    public enum Mode {
+        /** Every instruction runs as the micro-ops moving values over the buses. */
+        BUS,
+        /** Instructions compute their result directly, skipping the buses and latches (unless debugging). */
+        MACRO,
+        /** Runs each instruction both ways and reports the first time they disagree. */
+        LOCKSTEP
+    }
+    
+    private final DispatchTable busTable = DispatchTable.bus();
+    private final DispatchTable macroTable = DispatchTable.macro();
+    
+    /** The table instructions are currently decoded with, {@link #busTable} or {@link #macroTable} plus instruments. */
+    private DispatchTable table = busTable;
+    
+    private final java.util.List<Instrument> instruments = new java.util.ArrayList<>();
+    private Instrument debugger;
+    
+    /** Logs every interpreted instruction, see {@link Log#instruction}. Attach it with {@link #addInstrument}. */
+    public static final Instrument INSTRUCTION_LOG = new Instrument() {
+        @Override
+        public void before(CPU cpu, DecodedInstruction in) {
+            cpu.logInstruction(in);
+            
+            if(in.next != null)
+                cpu.logInstruction(in.next);
+        }
+    };
+    
+    /** Number of instructions executed since the last reset. */
+    public long cycles = 0;
+    
+    /** Address of the instruction currently being executed. */
+    private int instructionAddress = 0x00;
+    
     protected byte dataBus = 0x00;
     private int addressBus = 0x00;
     
-    public CPU() {
+    /** The machine this CPU belongs to, reached by the drawing instructions and when reporting errors. */
+    public final Machine machine;
+    
+    public CPU(Machine _machine) {
+        machine = _machine;
+        
         reset();
     }
     
     public void reset() {
-        r0 = new Register(0);
-        r1 = new Register(1);
-        r2 = new Register(2);
-        r3 = new Register(3);
-        r4 = new Register(4);
-        r5 = new Register(5);
-        r6 = new Register(6);
-        r7 = new Register(7);
-        
-        pc0 = new Register(8);
-        pc1 = new Register(9);
-        
-        flags = new Register(10);
-        
-        abr = new Register16(14);
-        
-        secret0 = new Register(15);
-        secret1 = new Register(16);
-        
-        input = new Register(17);
+        java.util.Arrays.fill(regs, (byte) 0);
         
-        alu = new ALU();
+        alu = new ALU(regs);
         
         progCounter = 0x00;
+        instructionAddress = 0x00;
+        cycles = 0;
         dataBus = 0x00;
         addressBus = 0x00;
 
-        m = new Memory(65536); // 64kb
-        h0 = new Memory(256);
-        h1 = new Memory(256);
+        m = Memory.allocate(65536); // 64kb
+        h0 = Memory.allocate(256);
+        h1 = Memory.allocate(256);
+        bus = new Bus(m);
+        
+        decodeCache = new DecodeCache(m, table);
+        jit = jitEnabled ? new Jit(this, Jit.DEFAULT_THRESHOLD) : null;
+        
+        m.setWriteListener((address, length) -> {
+            decodeCache.written(address, length);
+            
+            Jit j = jit;
+            if(j != null)
+                j.written(address, length);
+        });
 
         stack = new Stack(8);
         
-        Celsior.log("Reset CPU");
+        Log.debug("Reset CPU");
     }
     
-    public void clock() {
-        byte b = readByte();
-        switch(b) {
-            case 0x00:
-                abort("Encountered NOP");
-                break;
-            case 0x01:
-                instruction("ADD");
-                add(readByte(), readByte(), readByte());
-                break;
-            case 0x02:
-                instruction("SUB");
-                sub(readByte(), readByte(), readByte());
-                break;
-            case 0x03:
-                instruction("MUL");
-                mul(readByte(), readByte(), readByte());
-                break;
-            case 0x04:
-                instruction("RGT");
-                rgt(readByte(), readByte(), readByte());
-                break;
-            case 0x05:
-                instruction("LFT");
-                lft(readByte(), readByte(), readByte());
-                break;
-            case 0x06:
-                instruction("LBL");
-                lbl(readByte(), readByte(), readByte());
-                break;
-            case 0x07:
-                instruction("JMP");
-                jmp(readByte());
-                break;
-            case 0x08:
-                instruction("JIF");
-                jif(readByte(), readByte());
-                break;
-            case 0x09:
-                instruction("MOV");
-                mov(readByte());
-                break;
-            case 0xA:
-                instruction("PSH");
-                push(readByte());
-                break;
-            case 0x0B:
-                instruction("RTR");
-                rtr(readByte(), readByte());
-                break;
-            case 0x0C:
-                instruction("MTR");
-                mtr(readByte(), readByte(), readByte());
-                break;
-            case 0x0D:
-                instruction("RTM");
-                rtm(readByte(), readByte(), readByte());
-                break;
-            case 0x0E:
-                instruction("MTM");
-                mtm(readByte(), readByte(), readByte(), readByte());
-                break;
-            case 0x0F:
-                instruction("VTR");
-                vtr(readByte(), readByte());
-                break;
-            case 0x10:
-                instruction("RTV");
-                rtv(readByte(), readByte());
-                break;
-            case 0x11:
-                instruction("FTR");
-                ftr(readByte());
-                break;
-            case 0x12:
-                instruction("CMP");
-                cmp(readByte(), readByte());
-                break;
-            case 0x13:
-                instruction("AND");
-                and(readByte(), readByte(), readByte());
-                break;
-            case 0x14:
-                instruction("NOT");
-                not(readByte(), readByte());
-                break;
-            case 0x15:
-                instruction("OR");
-                or(readByte(), readByte(), readByte());
-                break;
-            case 0x16:
-                instruction("XOR");
-                xor(readByte(), readByte(), readByte());
-                break;
-            case 0x50:
-                instruction("PXL");
-                Celsior.gpu.pxl(readByte(), readByte(), readByte());
-                break;
-            case 0x51:
-                instruction("LINE");
-                Celsior.gpu.line(readByte(), readByte(), readByte(), readByte(), readByte());
-                break;
-            case 0x52:
-                instruction("PRT");
-                Celsior.gpu.prt(readByte(), readByte(), readByte());
-                break;
-            case 0x53:
-                instruction("GMT");
-                Celsior.gpu.gmt();
-                break;
-            default:
-                abort("Unknown instruction " + Integer.toHexString(b));
-        }
+    /** Number of bytes {@link #save} writes. */
+    public int stateSize() {
+        return 8 + 3 * 4 + 1 + REGISTER_COUNT + stack.stateSize() + m.stateSize() + h0.stateSize() + h1.stateSize();
+    }
+    
+    /**
+     * Writes everything a running program can observe to {@code out}, for {@link celsior.SaveState}:
+     * the cycle count, program counter, both buses, every register (including the address bus register
+     * and ALU latches), the stack, memory and the labels.
+     */
+    public void save(ByteBuffer out) {
+        out.putLong(cycles);
+        out.putInt(progCounter);
+        out.putInt(instructionAddress);
+        out.putInt(addressBus);
+        out.put(dataBus);
+        out.put(regs);
+        stack.save(out);
+        m.save(out);
+        h0.save(out);
+        h1.save(out);
+    }
+    
+    /**
+     * Reads a state written by {@link #save}, dropping decoded instructions and compiled blocks.
+     */
+    public void restore(ByteBuffer in) {
+        cycles = in.getLong();
+        progCounter = in.getInt();
+        instructionAddress = in.getInt();
+        addressBus = in.getInt();
+        dataBus = in.get();
+        in.get(regs);
+        stack.restore(in);
+        m.restore(in);
+        h0.restore(in);
+        h1.restore(in);
         
-        if(Celsior.debugging) {
-            updateDebug();
+        decodeCache.clear();
+        if(jit != null)
+            jit.clear();
+    }
+    
+    /**
+     * The state {@link #save} writes, kept in memory. Memory is shared with the CPU until either writes it
+     * (see {@link Memory#snapshot}), so taking one costs little more than the pages written since the last.
+     */
+    public static final class Snapshot {
+        public final long cycles;
+        private final int progCounter, instructionAddress, addressBus;
+        private final byte dataBus;
+        private final byte[] regs;
+        private final Stack stack;
+        private final Memory.Snapshot m, h0, h1;
+        
+        private Snapshot(CPU cpu) {
+            cycles = cpu.cycles;
+            progCounter = cpu.progCounter;
+            instructionAddress = cpu.instructionAddress;
+            addressBus = cpu.addressBus;
+            dataBus = cpu.dataBus;
+            regs = cpu.regs.clone();
+            stack = cpu.stack.copy();
+            m = cpu.m.snapshot();
+            h0 = cpu.h0.snapshot();
+            h1 = cpu.h1.snapshot();
         }
     }
     
-    public void abort(String errorMessage) {
-        Celsior.error(errorMessage + " at 0x" + Integer.toHexString(progCounter - 1).toUpperCase() + ".");
+    public Snapshot snapshot() {
+        return new Snapshot(this);
     }
     
-    public void instruction(String instructionName) {
-        Celsior.log("Executed " + instructionName + " at 0x" + Integer.toHexString(progCounter - 1).toUpperCase() + ".");
+    /**
+     * Restores a snapshot taken of this CPU. Decoded instructions and compiled blocks are only dropped for
+     * the memory pages that differ.
+     */
+    public void restore(Snapshot snapshot) {
+        cycles = snapshot.cycles;
+        progCounter = snapshot.progCounter;
+        instructionAddress = snapshot.instructionAddress;
+        addressBus = snapshot.addressBus;
+        dataBus = snapshot.dataBus;
+        System.arraycopy(snapshot.regs, 0, regs, 0, regs.length);
+        stack.set(snapshot.stack);
+        m.restore(snapshot.m);
+        h0.restore(snapshot.h0);
+        h1.restore(snapshot.h1);
     }
     
     /**
-     * Gets the byte stored in memory at progCounter. Then, progCounter is incremented.
-     * @return current byte in mem at progCounter + 1
+     * Turns the JIT on or off. Takes the machine's lock, so it never happens in the middle of a batch.
      */
-    public byte readByte() {
-        byte ret = m.getByte(progCounter);
-        pca();
-        return ret;
+    public void setJitEnabled(boolean enabled) {
+        synchronized(machine) {
+            jitEnabled = enabled;
+            jit = enabled ? new Jit(this, Jit.DEFAULT_THRESHOLD) : null;
+        }
+    }
+    
+    public Mode getMode() {
+        return mode;
+    }
+    
+    /**
+     * Switches the execution mode. Like the other methods that rebuild the dispatch table, takes the
+     * machine's lock so it never happens in the middle of a batch.
+     */
+    public void setMode(Mode _mode) {
+        synchronized(machine) {
+            mode = _mode;
+            updateTable();
+        }
+    }
+    
+    /**
+     * Registers a device or extension instruction in every execution mode, replacing whatever
+     * {@code opcode} did before.
+     * @see DispatchTable#register
+     */
+    public void registerInstruction(int opcode, String name, int operandCount, DispatchTable.Handler handler) {
+        synchronized(machine) {
+            busTable.register(opcode, name, operandCount, handler);
+            macroTable.register(opcode, name, operandCount, handler);
+            
+            updateTable();
+        }
+    }
+    
+    /**
+     * Makes {@code instrument} see every interpreted instruction from now on.
+     */
+    public void addInstrument(Instrument instrument) {
+        synchronized(machine) {
+            instruments.add(instrument);
+            updateTable();
+        }
+    }
+    
+    public void removeInstrument(Instrument instrument) {
+        synchronized(machine) {
+            instruments.remove(instrument);
+            updateTable();
+        }
+    }
+    
+    /**
+     * Attaches a debugger, which runs after every instruction. While attached, instructions are executed
+     * as bus-accurate micro-ops one at a time, and the JIT is bypassed.
+     * @param _debugger the debugger, or null to detach it
+     */
+    public void setDebugger(Instrument _debugger) {
+        synchronized(machine) {
+            debugger = _debugger;
+            updateTable();
+        }
+    }
+    
+    /**
+     * Gets the dispatch table currently in use, including instruments.
+     */
+    public DispatchTable getDispatchTable() {
+        return table;
+    }
+    
+    private void updateTable() {
+        DispatchTable t;
+        if(debugger != null || mode == Mode.BUS)
+            t = busTable;
+        else if(mode == Mode.MACRO)
+            t = macroTable;
+        else
+            t = DispatchTable.lockstep(busTable, macroTable);
+        
+        for(Instrument instrument : instruments)
+            t = t.instrumented(instrument);
+        
+        if(debugger != null)
+            t = t.instrumented(debugger);
+        
+        table = t;
+        decodeCache.setTable(t);
+        
+        if(jit != null)
+            jit.clear();
+    }
+    
+    public void clock() {
+        Jit j = jit;
+        
+        if(j != null && debugger == null && j.execute() > 0)
+            return; // compiled blocks count their own cycles
+        
+        DecodedInstruction in = decodeCache.fetch(progCounter);
+        
+        enter(in);
+        in.handler.execute(this, in);
+        
+        cycles++;
+        
+        if(j != null && branches(in))
+            j.branched();
+    }
+    
+    private static boolean branches(DecodedInstruction in) {
+        if(in.next != null)
+            in = in.next;
+        
+        return in.opcode == 0x07 || in.opcode == 0x08; // JMP, JIF
+    }
+    
+    /**
+     * Starts executing {@code in}, which must be the instruction at the program counter, by moving the
+     * program counter past it.
+     */
+    void enter(DecodedInstruction in) {
+        instructionAddress = progCounter;
+        progCounter += in.length;
+    }
+    
+    /**
+     * Executes {@code in} with the macro-op handler, rolls back, executes it again with the micro-op
+     * handler and aborts if the architectural state (r0-r7, input, flags, program counter, stack, memory
+     * and header RAM) differs.
+     */
+    void lockstep(DecodedInstruction in, DispatchTable.Handler micro, DispatchTable.Handler macro) {
+        int target = in.writeTarget();
+        int label = in.opcode == 0x06 ? in.a : 0;
+        
+        byte[] regsBefore = regs.clone();
+        Stack stackBefore = stack.copy();
+        int pcBefore = progCounter;
+        byte memBefore = target < 0 ? 0 : bus.read(target);
+        byte h0Before = h0.getByte(label), h1Before = h1.getByte(label);
+        
+        macro.execute(this, in);
+        
+        byte[] regsMacro = regs.clone();
+        Stack stackMacro = stack.copy();
+        int pcMacro = progCounter;
+        byte memMacro = target < 0 ? 0 : bus.read(target);
+        byte h0Macro = h0.getByte(label), h1Macro = h1.getByte(label);
+        
+        System.arraycopy(regsBefore, 0, regs, 0, regs.length);
+        stack.set(stackBefore);
+        progCounter = pcBefore;
+        if(target >= 0)
+            bus.write(target, memBefore);
+        h0.putByte(label, h0Before);
+        h1.putByte(label, h1Before);
+        
+        micro.execute(this, in);
+        
+        StringBuilder divergence = new StringBuilder();
+        for(int i = R0; i <= FLAGS; i++) {
+            if(regs[i] != regsMacro[i])
+                divergence.append(" register ").append(i).append(" bus=").append(regs[i]).append(" macro=").append(regsMacro[i]);
+        }
+        if(progCounter != pcMacro)
+            divergence.append(" progCounter bus=").append(progCounter).append(" macro=").append(pcMacro);
+        if(!stack.equals(stackMacro))
+            divergence.append(" stack");
+        if(target >= 0 && bus.read(target) != memMacro)
+            divergence.append(" memory[").append(target).append("] bus=").append(bus.read(target)).append(" macro=").append(memMacro);
+        if(h0.getByte(label) != h0Macro || h1.getByte(label) != h1Macro)
+            divergence.append(" label ").append(label);
+        
+        if(divergence.length() > 0)
+            abort("Lockstep divergence executing opcode 0x" + Integer.toHexString(Byte.toUnsignedInt(in.opcode)) + ":" + divergence);
+    }
+    
+    private void logInstruction(DecodedInstruction in) {
+        if(in.opcode != 0x00 && table.isKnown(in.opcode))
+            Log.instruction(table, in.address, in.opcode);
+    }
+    
+    public void abort(String errorMessage) {
+        machine.error(errorMessage + " at 0x" + Integer.toHexString(instructionAddress).toUpperCase() + ".");
     }
     
     /**
@@ -329,7 +523,7 @@ public final class CPU {
      * @param compareType 0 = equal, 1 = greater, 2 = less, 3 = greater_e, 4 = less_e, 5 = not_equal
      */
     public void jif(byte index, byte compareType) {
-        if(bitAt(flags.getVal(), compareType))
+        if(bitAt(regs[FLAGS], compareType))
             jmp(index);
     }
     
@@ -338,11 +532,11 @@ public final class CPU {
     /**
      * Set register to value.
      * @param regTo register to set
+     * @param value the immediate value following the register in memory
      */
-    public void mov(byte regTo) {
-        pta();
-        pca();
-        me();
+    public void mov(byte regTo, byte value) {
+        addressBus = (char) (progCounter - 1); // the immediate is the last byte of the instruction
+        dataBus = value;
         callRw(regTo);
     }
     
@@ -492,7 +686,7 @@ public final class CPU {
         au1();
         alu.auc();
         auo();
-        flags.setVal(dataBus);
+        regs[FLAGS] = dataBus;
     }
     
     /**
@@ -607,7 +801,7 @@ public final class CPU {
         au1();
         alu.auc();
         auo();
-        flags.setVal(dataBus);
+        regs[FLAGS] = dataBus;
     }
     
     /**
@@ -636,42 +830,42 @@ public final class CPU {
     
     /** Program Counter 0 (write databus to reg) */
     private void pc0() {
-        pc0.setVal(dataBus);
+        regs[PC0] = dataBus;
     }
     
     /** Program Counter 1 (write databus to reg) */
     private void pc1() {
-        pc1.setVal(dataBus);
+        regs[PC1] = dataBus;
     }
     
     /** Program Counter Enable (write pc regs to programcounter short) */
     private void pce() {
-        progCounter = bytesToShort((byte) pc0.getVal(), (byte) pc1.getVal());
+        progCounter = bytesToShort(regs[PC0], regs[PC1]);
     }
     
     /** Memory Write - set memory at addressBus's pointer to contents of dataBus */
     private void mw() {
-        m.putByte(addressBus, dataBus);
+        bus.write(addressBus, dataBus);
     }
     
     /** Memory Enable - set dataBus to contents of memory located at addressBus's pointer */
     private void me() {
-        dataBus = m.getByte(addressBus);
+        dataBus = bus.read(addressBus);
     }
     
     /** Databus to ALU Reg 0 */
     private void au0() {
-        alu.r0.setVal(dataBus);
+        regs[ALU0] = dataBus;
     }
     
     /** Databus to ALU Reg 1 */
     private void au1() {
-        alu.r1.setVal(dataBus);
+        regs[ALU1] = dataBus;
     }
     
     /** ALU Out - Write ALU Output Reg to Databus */
     private void auo() {
-        dataBus = alu.r2.getVal();
+        dataBus = regs[ALU2];
     }
     
     /** Address Bus copy to Program Counter */
@@ -686,22 +880,23 @@ public final class CPU {
     
     /** Address Bus copy to Address Bus Register */
     private void atr() {
-        abr.setVal((char) addressBus);
+        regs[ABR0] = getLeftByte((char) addressBus);
+        regs[ABR1] = getRightByte((char) addressBus);
     }
     
     /** Address Bus Register copy to Address Bus */
     private void rta() {
-        addressBus = abr.getVal();
+        addressBus = abr();
     }
     
     /** Data Bus copy to Left Byte of Address Bus */
     private void ard0() {
-        abr.setVal(bytesToShort(dataBus, getRightByte(abr.getVal())));
+        regs[ABR0] = dataBus;
     }
     
     /** Data Bus copy to Right Byte of Address Bus */
     private void ard1() { 
-        abr.setVal(bytesToShort(getLeftByte(abr.getVal()), dataBus));
+        regs[ABR1] = dataBus;
     }
     
     /** Address Bus to H-mem at index {@code databus}*/
@@ -712,52 +907,16 @@ public final class CPU {
     
     /** Get index dataBus from header RAM and copy to Address Bus */
     private void hta() {
-        abr.setVal(bytesToShort(h0.getByte(dataBus), h1.getByte(dataBus)));
-    }
-    
-    // Following are databus -> register writes
-    private void r0w() {
-        r0.setVal(dataBus);
-    }
-    
-    private void r1w() {
-        r1.setVal(dataBus);
-    }
-    
-    private void r2w() {
-        r2.setVal(dataBus);
-    }
-    
-    private void r3w() {
-        r3.setVal(dataBus);
-    }
-    
-    private void r4w() {
-        r4.setVal(dataBus);
-    }
-    
-    private void r5w() {
-        r5.setVal(dataBus);
-    }
-    
-    private void r6w() {
-        r6.setVal(dataBus);
-    }
-    
-    private void r7w() {
-        r7.setVal(dataBus);
-    }
-    
-    private void r8w() {
-        input.setVal(dataBus);
+        regs[ABR0] = h0.getByte(dataBus);
+        regs[ABR1] = h1.getByte(dataBus);
     }
     
     private void s0w() {
-        secret0.setVal(dataBus);
+        regs[SECRET0] = dataBus;
     }
     
     private void s1w() {
-        secret1.setVal(dataBus);
+        regs[SECRET1] = dataBus;
     }
     
     /**
@@ -767,53 +926,16 @@ public final class CPU {
         stack.push(dataBus);
     }
     
-    // Following are register -> databus writes
-    private void r0e() {
-        dataBus = r0.getVal();
-    }
-    
-    private void r1e() {
-        dataBus = r1.getVal();
-    }
-    
-    private void r2e() {
-        dataBus = r2.getVal();
-    }
-    
-    private void r3e() {
-        dataBus = r3.getVal();
-    }
-    
-    private void r4e() {
-        dataBus = r4.getVal();
-    }
-    
-    private void r5e() {
-        dataBus = r5.getVal();
-    }
-    
-    private void r6e() {
-        dataBus = r6.getVal();
-    }
-    
-    private void r7e() {
-        dataBus = r7.getVal();
-    }
-    
-    private void r8e() {
-        dataBus = input.getVal();
-    }
-    
     private void s0e() {
-        dataBus = secret0.getVal();
+        dataBus = regs[SECRET0];
     }
     
     private void s1e() {
-        dataBus = secret1.getVal();
+        dataBus = regs[SECRET1];
     }
     
     private void fe() {
-        dataBus = flags.getVal();
+        dataBus = regs[FLAGS];
     }
     
     /**
@@ -824,78 +946,51 @@ public final class CPU {
     }
     
     // HELPER METHODS
+    
+    /** Reads a register like {@link #callRe}, without going through the data bus. */
+    byte readRegister(byte regId) {
+        if(regId >= R0 && regId <= INPUT)
+            return regs[regId];
+        else if(regId == STACK)
+            return stack.pop();
+        
+        abort("Reading from nonexistent CPU register 0x" + Integer.toHexString(regId));
+        return dataBus;
+    }
+    
+    /** Writes a register like {@link #callRw}, without going through the data bus. */
+    void writeRegister(byte regId, byte value) {
+        if(regId >= R0 && regId <= INPUT)
+            regs[regId] = value;
+        else if(regId == STACK)
+            stack.push(value);
+        else
+            throw new IllegalArgumentException("Writing to nonexistent CPU register! " + regId);
+    }
+    
+    /** Address Bus Register value */
+    private char abr() {
+        return bytesToShort(regs[ABR0], regs[ABR1]);
+    }
+    
+    /** Register {@code regId} to data bus */
     protected void callRe(byte regId) {
-        switch(regId) {
-            case 0:
-                r0e();
-                break;
-            case 1:
-                r1e();
-                break;
-            case 2:
-                r2e();
-                break;
-            case 3:
-                r3e();
-                break;
-            case 4:
-                r4e();
-                break;
-            case 5:
-                r5e();
-                break;
-            case 6:
-                r6e();
-                break;
-            case 7:
-                r7e();
-                break;
-            case 8:
-                r8e();
-                break;
-            case 10:
-                ste();
-                break;
-            default:
-                abort("Reading from nonexistent CPU register 0x" + Integer.toHexString(regId));
-        }
+        if(regId >= R0 && regId <= INPUT)
+            dataBus = regs[regId];
+        else if(regId == STACK)
+            ste();
+        else
+            abort("Reading from nonexistent CPU register 0x" + Integer.toHexString(regId));
     }
     
+    /** Data bus to register {@code regId} */
     private void callRw(byte regId) {
-        switch(regId) {
-            case 0:
-                r0w();
-                break;
-            case 1:
-                r1w();
-                break;
-            case 2:
-                r2w();
-                break;
-            case 3:
-                r3w();
-                break;
-            case 4:
-                r4w();
-                break;
-            case 5:
-                r5w();
-                break;
-            case 6:
-                r6w();
-                break;
-            case 7:
-                r7w();
-                break;
-            case 8:
-                r8w();
-                break;
-            case 10:
-                stw();
-                break;
-            default:
-                throw new IllegalArgumentException("Writing to nonexistent CPU register! " + regId);
-        }
+        if(regId >= R0 && regId <= INPUT)
+            regs[regId] = dataBus;
+        else if(regId == STACK)
+            stw();
+        else
+            throw new IllegalArgumentException("Writing to nonexistent CPU register! " + regId);
     }
     
     public void setInput(boolean left, boolean right, boolean up, boolean down,
@@ -903,20 +998,25 @@ public final class CPU {
         
         byte inputVal = composeByte(left, right, up, down, a, d, w, s);
         
-        input.setVal(inputVal);
+        regs[INPUT] = inputVal;
     }
     
-    final char VRAM_START = 65391; // START OF VRAM
-    final char VRAM_END =  65535; // END OF VRAM
     //unused, unused, not equal, less or equal, less, greater equal, greater, equal
     
     final int FLAGS_EQUAL = 0, FLAGS_GREATER = 1, FLAGS_GREATER_EQUAL = 2, FLAGS_LESS = 3, FLAGS_LESS_EQUAL = 4, FLAGS_NOT_EQUAL = 5;
     final int INPUT_LEFT = 0, INPUT_RIGHT = 1, INPUT_UP = 2, INPUT_DOWN = 3, INPUT_A = 4, INPUT_D = 5, INPUT_W = 6, INPUT_S = 7;
 
-    public void updateDebug() {
-        Celsior.debugFrame.update(r0.getVal(), r1.getVal(), r2.getVal(), r3.getVal(), r4.getVal(),
-                    r5.getVal(), r6.getVal(), r7.getVal(),
-                    input.getVal(), pc0.getVal(), pc1.getVal(), flags.getVal(), secret0.getVal(), secret1.getVal(),
-                    abr.getVal(), addressBus, dataBus, progCounter, stack);
+    // bus state, shown by the debugger
+    
+    public char getAddressBusRegister() {
+        return abr();
+    }
+    
+    public int getAddressBus() {
+        return addressBus;
+    }
+    
+    public byte getDataBus() {
+        return dataBus;
     }
 }
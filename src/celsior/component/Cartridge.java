@@ -0,0 +1,87 @@
+package celsior.component;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A ROM image: a {@value #HEADER_SIZE} byte header followed by the program. When it is loaded the start
+ * of the program is copied into RAM (see {@link celsior.Machine#load(Cartridge)}), and all of it, even past
+ * 64kb, can be read a bank of {@value #BANK_SIZE} bytes at a time through a window in the address space.
+ * A ROM file is memory-mapped rather than read, so loading is instant and banks nobody reads never leave
+ * the disk. Never changes, so machines can share one.
+ */
+public final class Cartridge {
+    
+    public static final int HEADER_SIZE = 0x10;
+    public static final int BANK_SIZE = 0x2000;
+    
+    /** Banks a 16-bit bank register can select. */
+    public static final int MAX_BANKS = 65536;
+    
+    /** The whole file, header included. Only read with absolute gets, which are safe from any thread. */
+    private final ByteBuffer rom;
+    
+    /**
+     * @param _rom the ROM file's contents, from its position to its limit
+     * @throws IllegalArgumentException if it is too short for the header or has more than
+     * {@link #MAX_BANKS} banks
+     */
+    public Cartridge(ByteBuffer _rom) {
+        rom = _rom.slice();
+        
+        if(rom.capacity() < HEADER_SIZE || rom.capacity() - HEADER_SIZE > (long) MAX_BANKS * BANK_SIZE)
+            throw new IllegalArgumentException("Can't load a ROM of " + rom.capacity() + " bytes");
+    }
+    
+    /**
+     * Maps the ROM file {@code file} into memory.
+     * @throws IOException if it can't be read, or isn't a valid size
+     */
+    public static Cartridge map(Path file) throws IOException {
+        try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size > HEADER_SIZE + (long) MAX_BANKS * BANK_SIZE)
+                throw new IOException("Can't load a ROM of " + size + " bytes");
+            
+            // the mapping stays valid after the channel is closed
+            return new Cartridge(channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+        } catch (IllegalArgumentException ex) {
+            throw new IOException(ex.getMessage(), ex);
+        }
+    }
+    
+    /** Number of bytes after the header. */
+    public int programSize() {
+        return rom.capacity() - HEADER_SIZE;
+    }
+    
+    public int bankCount() {
+        return (programSize() + BANK_SIZE - 1) / BANK_SIZE;
+    }
+    
+    /**
+     * Reads byte {@code offset} of bank {@code bank}. Bank 0 starts at the start of the program.
+     * @return the byte, or 0 past the end of the ROM
+     */
+    public byte read(int bank, int offset) {
+        long index = HEADER_SIZE + (long) bank * BANK_SIZE + offset;
+        return index < rom.capacity() ? rom.get((int) index) : 0;
+    }
+    
+    /**
+     * Gets the header and the first {@code size} bytes of the program, or all of it if it is shorter, in
+     * the format of a ROM file. For a ROM that fits in {@code size} this is the whole file.
+     */
+    public byte[] head(int size) {
+        byte[] bytes = new byte[HEADER_SIZE + Math.min(size, programSize())];
+        
+        ByteBuffer view = rom.duplicate();
+        view.clear();
+        view.get(bytes);
+        
+        return bytes;
+    }
+}
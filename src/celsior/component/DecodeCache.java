@@ -0,0 +1,93 @@
+package celsior.component;
+
+/**
+ * Remembers the decoded instruction at every program address so the CPU only has to fetch and parse
+ * each instruction once. Entries are dropped when the memory they were decoded from is written to.
+ */
+public final class DecodeCache implements Memory.WriteListener {
+    
+    /** Longest possible instruction in bytes. */
+    public static final int MAX_LENGTH = 1 + DispatchTable.MAX_OPERANDS;
+    
+    /** Longest possible fused pair in bytes. */
+    public static final int MAX_FUSED_LENGTH = 2 * MAX_LENGTH;
+    
+    public DecodeCache(Memory memory, DispatchTable dispatchTable) {
+        m = memory;
+        table = dispatchTable;
+        entries = new DecodedInstruction[m.size()];
+    }
+    
+    public DispatchTable getTable() {
+        return table;
+    }
+    
+    /**
+     * Decodes everything again with {@code dispatchTable}, since cached instructions hold on to the
+     * handlers of the table they were decoded with.
+     */
+    public void setTable(DispatchTable dispatchTable) {
+        table = dispatchTable;
+        clear();
+    }
+    
+    /**
+     * Gets the instruction starting at {@code address}, decoding it first if it isn't cached yet.
+     * @param address program address of the opcode
+     * @return the decoded instruction
+     */
+    public DecodedInstruction fetch(int address) {
+        int index = address % entries.length;
+        
+        DecodedInstruction in = entries[index];
+        if(in == null) {
+            in = decode(address);
+            entries[index] = in;
+        }
+        
+        return in;
+    }
+    
+    private DecodedInstruction decode(int address) {
+        byte opcode = m.getByte(address);
+        int operands = table.operandCount(opcode);
+        
+        byte[] o = new byte[DispatchTable.MAX_OPERANDS];
+        for(int i = 0; i < operands; i++)
+            o[i] = m.getByte(address + 1 + i);
+        
+        int length = operands + 1;
+        
+        DispatchTable.Handler handler = table.pairHandler(opcode, m.getByte(address + length));
+        DecodedInstruction next = null;
+        if(handler != null)
+            next = fetch(address + length);
+        else
+            handler = table.handler(opcode);
+        
+        return new DecodedInstruction(address, opcode, length, o[0], o[1], o[2], o[3], o[4], handler, next);
+    }
+    
+    /**
+     * Drops every cached instruction that overlaps the written range.
+     */
+    @Override
+    public void written(int address, int length) {
+        if(length >= entries.length) {
+            clear();
+            return;
+        }
+        
+        // an instruction (or fused pair) starting up to MAX_FUSED_LENGTH - 1 bytes before the write may contain it
+        for(int i = address - (MAX_FUSED_LENGTH - 1); i < address + length; i++)
+            entries[Math.floorMod(i, entries.length)] = null;
+    }
+    
+    public void clear() {
+        java.util.Arrays.fill(entries, null);
+    }
+    
+    private final Memory m;
+    private DispatchTable table;
+    private final DecodedInstruction[] entries;
+}
@@ -0,0 +1,56 @@
+package celsior.component;
+
+/**
+ * An instruction that has already been fetched from memory and split into its opcode and operands.
+ * Unused operands are 0.
+ */
+public final class DecodedInstruction {
+    
+    public DecodedInstruction(int _address, byte _opcode, int _length, byte _a, byte _b, byte _c, byte _d, byte _e,
+            DispatchTable.Handler _handler, DecodedInstruction _next) {
+        address = _address;
+        opcode = _opcode;
+        length = _length;
+        a = _a;
+        b = _b;
+        c = _c;
+        d = _d;
+        e = _e;
+        handler = _handler;
+        next = _next;
+    }
+    
+    /**
+     * Gets the memory address this instruction stores to.
+     * @return the address, or -1 if the instruction doesn't write memory
+     */
+    public int writeTarget() {
+        switch(opcode) {
+            case 0x0D: // RTM
+                return Byte.toUnsignedInt(b) << 8 | Byte.toUnsignedInt(c);
+            case 0x0E: // MTM, which takes the low byte of the destination from the source address
+                return Byte.toUnsignedInt(c) << 8 | Byte.toUnsignedInt(b);
+            case 0x10: // RTV
+                return (0xFFFF - b) & 0xFFFF;
+            default:
+                return -1;
+        }
+    }
+    
+    public final int address;
+    public final byte opcode;
+    
+    /** Size of the instruction in bytes, including the opcode. */
+    public final int length;
+    
+    public final byte a, b, c, d, e;
+    
+    /** Executes this instruction, or the fused pair if {@link #next} is set. */
+    public final DispatchTable.Handler handler;
+    
+    /**
+     * The instruction right after this one if the dispatch table fuses the pair into a single operation
+     * (see {@link DispatchTable#registerPair}), otherwise null.
+     */
+    public final DecodedInstruction next;
+}
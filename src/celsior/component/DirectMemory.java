@@ -0,0 +1,187 @@
+package celsior.component;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Memory in a direct {@link ByteBuffer}, outside the Java heap, so the garbage collector never scans it
+ * and the contents can be handed to native code, or to another process when the buffer maps a shared
+ * file, without copying (see {@link #asByteBuffer}). The bytes stay in one contiguous buffer, so
+ * snapshots work the other way round from {@link HeapMemory}'s: a page is written in place, and its old
+ * contents are copied out to the heap first if a snapshot still needs them.
+ */
+public final class DirectMemory extends AbstractMemory {
+    
+    /**
+     * The contents of one page at the time of a snapshot, shared by every snapshot taken before the page
+     * was next written.
+     */
+    private static final class SavedPage {
+        /** Null while the page itself still holds them. */
+        private byte[] contents;
+    }
+    
+    private static final class DirectSnapshot implements Snapshot {
+        private final SavedPage[] pages;
+        private final int size;
+        
+        private DirectSnapshot(SavedPage[] _pages, int _size) {
+            pages = _pages;
+            size = _size;
+        }
+    }
+    
+    private final ByteBuffer buffer;
+    
+    /** The saved page the newest snapshot shares with each page, null if it has been written since. */
+    private final SavedPage[] saved;
+    
+    /**
+     * Allocates a new direct buffer of {@code size} bytes.
+     */
+    public DirectMemory(int size) {
+        this(ByteBuffer.allocateDirect(size));
+    }
+    
+    /**
+     * Uses {@code _buffer}, from 0 to its capacity, as the contents, for example a file mapped into
+     * memory. It isn't cleared.
+     */
+    public DirectMemory(ByteBuffer _buffer) {
+        super(_buffer.capacity());
+        
+        buffer = _buffer.duplicate();
+        buffer.clear();
+        saved = new SavedPage[pageCount()];
+    }
+    
+    /**
+     * Gets a read-only view of the contents, which changes with them.
+     */
+    public ByteBuffer asByteBuffer() {
+        return buffer.asReadOnlyBuffer();
+    }
+    
+    /**
+     * Copies the contents of {@code page} out to the snapshots sharing it, if any, before it is written.
+     */
+    private void beforeWrite(int page) {
+        SavedPage s = saved[page];
+        if(s == null)
+            return;
+        
+        if(s.contents == null)
+            s.contents = getBytes((char) (page << PAGE_BITS), (char) Math.min(size, (page + 1) << PAGE_BITS));
+        saved[page] = null;
+    }
+    
+    @Override
+    public void putByte(char address, byte b) {
+        beforeWrite(address >>> PAGE_BITS);
+        buffer.put(address, b);
+        dirty(address >>> PAGE_BITS);
+        written(address, 1);
+    }
+    
+    @Override
+    public void putBytes(int startAddress, byte[] bytes) {
+        int length = bytes.length - 0x10;
+        if(startAddress < 0 || length < 0 || startAddress + length > size)
+            throw new ArrayIndexOutOfBoundsException("Can't put " + length + " bytes at " + startAddress + " into " + size);
+        
+        if(length == 0)
+            return;
+        
+        int first = startAddress >>> PAGE_BITS, last = (startAddress + length - 1) >>> PAGE_BITS;
+        for(int page = first; page <= last; page++)
+            beforeWrite(page);
+        
+        ByteBuffer view = buffer.duplicate();
+        view.position(startAddress);
+        view.put(bytes, 0x10, length);
+        
+        for(int page = first; page <= last; page++)
+            dirty(page);
+        written(startAddress, length);
+    }
+    
+    @Override
+    public byte getByte(char address) {
+        return buffer.get(address);
+    }
+    
+    @Override
+    public byte[] getBytes(char from, char to) {
+        if(from > to || to > size)
+            throw new ArrayIndexOutOfBoundsException("Can't get bytes " + (int) from + " to " + (int) to + " of " + size);
+        
+        byte[] bytes = new byte[to - from];
+        
+        ByteBuffer view = buffer.duplicate();
+        view.position(from);
+        view.get(bytes);
+        
+        return bytes;
+    }
+    
+    @Override
+    public Snapshot snapshot() {
+        for(int i = 0; i < saved.length; i++) {
+            if(saved[i] == null)
+                saved[i] = new SavedPage();
+        }
+        
+        return new DirectSnapshot(saved.clone(), size);
+    }
+    
+    @Override
+    public void restore(Snapshot snapshot) {
+        if(!(snapshot instanceof DirectSnapshot))
+            throw new IllegalArgumentException("Snapshot is of another kind of memory");
+        
+        DirectSnapshot direct = (DirectSnapshot) snapshot;
+        if(direct.size != size)
+            throw new IllegalArgumentException("Snapshot has " + direct.size + " bytes, expected " + size);
+        
+        for(int i = 0; i < saved.length; i++) {
+            SavedPage s = direct.pages[i];
+            if(s == saved[i])
+                continue; // not written since
+            
+            // newer snapshots may still need what the page holds now
+            beforeWrite(i);
+            
+            ByteBuffer view = buffer.duplicate();
+            view.position(i << PAGE_BITS);
+            view.put(s.contents);
+            
+            saved[i] = s;
+            dirty(i);
+            written(i << PAGE_BITS, s.contents.length);
+        }
+    }
+    
+    @Override
+    public void save(ByteBuffer out) {
+        out.putInt(size);
+        out.put(buffer.duplicate());
+    }
+    
+    @Override
+    public void restore(ByteBuffer in) {
+        int savedSize = in.getInt();
+        if(savedSize != size)
+            throw new IllegalArgumentException("Saved memory has " + savedSize + " bytes, expected " + size);
+        
+        for(int i = 0; i < saved.length; i++)
+            beforeWrite(i);
+        
+        ByteBuffer from = in.duplicate();
+        from.limit(from.position() + size);
+        buffer.duplicate().put(from);
+        in.position(in.position() + size);
+        
+        for(int i = 0; i < saved.length; i++)
+            dirty(i);
+        written(0, size);
+    }
+}
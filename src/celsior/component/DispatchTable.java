@@ -0,0 +1,221 @@
+package celsior.component;
+
+/**
+ * Maps each of the 256 opcodes to the handler executing it and the number of operand bytes following it.
+ * The decode cache looks handlers up once per decoded instruction, so the CPU just calls whatever table
+ * it was given. Tracing, profiling and the debugger are whole tables wrapping another one (see
+ * {@link #instrumented}), which keeps the plain tables free of any checks for them.
+ */
+public final class DispatchTable {
+    
+    /**
+     * Executes one decoded instruction. The program counter already points past it when called.
+     */
+    public interface Handler {
+        void execute(CPU cpu, DecodedInstruction in);
+    }
+    
+    /** Largest number of operand bytes an instruction can have. */
+    public static final int MAX_OPERANDS = 5;
+    
+    private static final Handler UNKNOWN = (cpu, in) ->
+            cpu.abort("Unknown instruction " + Integer.toHexString(Byte.toUnsignedInt(in.opcode)));
+    
+    private final Handler[] handlers = new Handler[256];
+    private final String[] names = new String[256];
+    private final int[] operands = new int[256];
+    private final boolean[] builtin = new boolean[256];
+    
+    /** Handlers for fused pairs, indexed by first and then second opcode. Rows are null when unused. */
+    private final Handler[][] pairs = new Handler[256][];
+    
+    /**
+     * Creates a table where every opcode is unknown.
+     */
+    public DispatchTable() {
+        java.util.Arrays.fill(handlers, UNKNOWN);
+    }
+    
+    /**
+     * Registers the handler for {@code opcode}, replacing the current one. Use this for device or
+     * extension instructions; the JIT leaves opcodes registered this way to the interpreter.
+     * @param opcode the opcode, 0-255
+     * @param name mnemonic shown in logs and reports
+     * @param operandCount number of operand bytes following the opcode
+     * @param handler executes the instruction
+     */
+    public void register(int opcode, String name, int operandCount, Handler handler) {
+        if(opcode < 0 || opcode > 0xFF)
+            throw new IllegalArgumentException("Opcode out of range: " + opcode);
+        if(operandCount < 0 || operandCount > MAX_OPERANDS)
+            throw new IllegalArgumentException("Instructions have at most " + MAX_OPERANDS + " operands, " + name + " has " + operandCount);
+        
+        handlers[opcode] = handler;
+        names[opcode] = name;
+        operands[opcode] = operandCount;
+        builtin[opcode] = false;
+    }
+    
+    void registerBuiltin(int opcode, String name, int operandCount, Handler handler) {
+        register(opcode, name, operandCount, handler);
+        builtin[opcode] = true;
+    }
+    
+    /**
+     * Makes the decoder fuse an instruction with the one following it, so {@code handler} runs both at
+     * once. The handler gets the first instruction, with the second in {@link DecodedInstruction#next}.
+     */
+    public void registerPair(int first, int second, Handler handler) {
+        if(pairs[first] == null)
+            pairs[first] = new Handler[256];
+        
+        pairs[first][second] = handler;
+    }
+    
+    public Handler handler(byte opcode) {
+        return handlers[Byte.toUnsignedInt(opcode)];
+    }
+    
+    /**
+     * Gets the handler running {@code first} and {@code second} as one operation.
+     * @return the handler, or null if the pair isn't fused
+     */
+    public Handler pairHandler(byte first, byte second) {
+        Handler[] row = pairs[Byte.toUnsignedInt(first)];
+        return row != null ? row[Byte.toUnsignedInt(second)] : null;
+    }
+    
+    /**
+     * Number of operand bytes following {@code opcode}. Unknown opcodes have none.
+     */
+    public int operandCount(byte opcode) {
+        return operands[Byte.toUnsignedInt(opcode)];
+    }
+    
+    /**
+     * Mnemonic of {@code opcode}, or its hex value for unknown opcodes.
+     */
+    public String name(byte opcode) {
+        String name = names[Byte.toUnsignedInt(opcode)];
+        return name != null ? name : "0x" + Integer.toHexString(Byte.toUnsignedInt(opcode)).toUpperCase();
+    }
+    
+    public boolean isKnown(byte opcode) {
+        return names[Byte.toUnsignedInt(opcode)] != null;
+    }
+    
+    /**
+     * Whether {@code opcode} still runs the standard CASM instruction rather than something registered
+     * with {@link #register}.
+     */
+    public boolean isBuiltin(byte opcode) {
+        return builtin[Byte.toUnsignedInt(opcode)];
+    }
+    
+    public DispatchTable copy() {
+        DispatchTable copy = new DispatchTable();
+        
+        System.arraycopy(handlers, 0, copy.handlers, 0, 256);
+        System.arraycopy(names, 0, copy.names, 0, 256);
+        System.arraycopy(operands, 0, copy.operands, 0, 256);
+        System.arraycopy(builtin, 0, copy.builtin, 0, 256);
+        for(int i = 0; i < 256; i++)
+            copy.pairs[i] = pairs[i] != null ? pairs[i].clone() : null;
+        
+        return copy;
+    }
+    
+    /**
+     * Creates a copy of this table where every handler, including the fused pairs, is surrounded by
+     * calls to {@code instrument}.
+     */
+    public DispatchTable instrumented(Instrument instrument) {
+        DispatchTable table = copy();
+        
+        for(int i = 0; i < 256; i++) {
+            table.handlers[i] = wrap(handlers[i], instrument);
+            
+            if(pairs[i] != null) {
+                for(int j = 0; j < 256; j++) {
+                    if(pairs[i][j] != null)
+                        table.pairs[i][j] = wrap(pairs[i][j], instrument);
+                }
+            }
+        }
+        
+        return table;
+    }
+    
+    private static Handler wrap(Handler handler, Instrument instrument) {
+        return (cpu, in) -> {
+            instrument.before(cpu, in);
+            handler.execute(cpu, in);
+            instrument.after(cpu, in);
+        };
+    }
+    
+    /**
+     * Creates the table running every instruction as the bus-accurate micro-ops in {@link CPU}.
+     */
+    public static DispatchTable bus() {
+        DispatchTable t = new DispatchTable();
+        
+        t.registerBuiltin(0x00, "NOP", 0, (cpu, in) -> cpu.abort("Encountered NOP"));
+        t.registerBuiltin(0x01, "ADD", 3, (cpu, in) -> cpu.add(in.a, in.b, in.c));
+        t.registerBuiltin(0x02, "SUB", 3, (cpu, in) -> cpu.sub(in.a, in.b, in.c));
+        t.registerBuiltin(0x03, "MUL", 3, (cpu, in) -> cpu.mul(in.a, in.b, in.c));
+        t.registerBuiltin(0x04, "RGT", 3, (cpu, in) -> cpu.rgt(in.a, in.b, in.c));
+        t.registerBuiltin(0x05, "LFT", 3, (cpu, in) -> cpu.lft(in.a, in.b, in.c));
+        t.registerBuiltin(0x06, "LBL", 3, (cpu, in) -> cpu.lbl(in.a, in.b, in.c));
+        t.registerBuiltin(0x07, "JMP", 1, (cpu, in) -> cpu.jmp(in.a));
+        t.registerBuiltin(0x08, "JIF", 2, (cpu, in) -> cpu.jif(in.a, in.b));
+        t.registerBuiltin(0x09, "MOV", 2, (cpu, in) -> cpu.mov(in.a, in.b)); // register, immediate value
+        t.registerBuiltin(0x0A, "PSH", 1, (cpu, in) -> cpu.push(in.a));
+        t.registerBuiltin(0x0B, "RTR", 2, (cpu, in) -> cpu.rtr(in.a, in.b));
+        t.registerBuiltin(0x0C, "MTR", 3, (cpu, in) -> cpu.mtr(in.a, in.b, in.c));
+        t.registerBuiltin(0x0D, "RTM", 3, (cpu, in) -> cpu.rtm(in.a, in.b, in.c));
+        t.registerBuiltin(0x0E, "MTM", 4, (cpu, in) -> cpu.mtm(in.a, in.b, in.c, in.d));
+        t.registerBuiltin(0x0F, "VTR", 2, (cpu, in) -> cpu.vtr(in.a, in.b));
+        t.registerBuiltin(0x10, "RTV", 2, (cpu, in) -> cpu.rtv(in.a, in.b));
+        t.registerBuiltin(0x11, "FTR", 1, (cpu, in) -> cpu.ftr(in.a));
+        t.registerBuiltin(0x12, "CMP", 2, (cpu, in) -> cpu.cmp(in.a, in.b));
+        t.registerBuiltin(0x13, "AND", 3, (cpu, in) -> cpu.and(in.a, in.b, in.c));
+        t.registerBuiltin(0x14, "NOT", 2, (cpu, in) -> cpu.not(in.a, in.b));
+        t.registerBuiltin(0x15, "OR", 3, (cpu, in) -> cpu.or(in.a, in.b, in.c));
+        t.registerBuiltin(0x16, "XOR", 3, (cpu, in) -> cpu.xor(in.a, in.b, in.c));
+        
+        t.registerBuiltin(0x50, "PXL", 3, (cpu, in) -> cpu.machine.gpu.pxl(in.a, in.b, in.c));
+        t.registerBuiltin(0x51, "LINE", 5, (cpu, in) -> cpu.machine.gpu.line(in.a, in.b, in.c, in.d, in.e));
+        t.registerBuiltin(0x52, "PRT", 3, (cpu, in) -> cpu.machine.gpu.prt(in.a, in.b, in.c));
+        t.registerBuiltin(0x53, "GMT", 0, (cpu, in) -> cpu.machine.gpu.gmt());
+        
+        return t;
+    }
+    
+    /**
+     * Creates the table running {@link MacroOps}, with CMP/JIF and MOV/arithmetic pairs fused.
+     */
+    public static DispatchTable macro() {
+        return MacroOps.table(bus());
+    }
+    
+    /**
+     * Creates a table running every instruction both from {@code macro} and from {@code bus} and
+     * aborting when they disagree, see {@link CPU.Mode#LOCKSTEP}. Instructions with the same handler in
+     * both tables (GPU and unknown ones) just run once. Nothing is fused.
+     */
+    static DispatchTable lockstep(DispatchTable bus, DispatchTable macro) {
+        DispatchTable t = bus.copy();
+        
+        java.util.Arrays.fill(t.pairs, null);
+        
+        for(int i = 0; i < 256; i++) {
+            Handler busHandler = bus.handlers[i], macroHandler = macro.handlers[i];
+            
+            if(busHandler != macroHandler)
+                t.handlers[i] = (cpu, in) -> cpu.lockstep(in, busHandler, macroHandler);
+        }
+        
+        return t;
+    }
+}
@@ -1,6 +1,7 @@
 package celsior.component;
 
-import celsior.Celsior;
+import celsior.Machine;
+import java.nio.ByteBuffer;
 
 public final class GPU {
     
@@ -8,16 +9,60 @@ public final class GPU {
     public boolean graphicsMode;
     public Memory m;
     
-    public GPU() {
+    private final Machine machine;
+    
+    public GPU(Machine _machine) {
+        machine = _machine;
         reset();
     }
     
     public void reset() {
-        m = new Memory(9360); // 9kb graphics + 144b text
+        m = Memory.allocate(9360); // 9kb graphics + 144b text
         
         graphicsMode = false; // default to text mode
     }
     
+    /** Number of bytes {@link #save} writes. */
+    public int stateSize() {
+        return 1 + m.stateSize();
+    }
+    
+    /**
+     * Writes the graphics mode and VRAM to {@code out}, for {@link celsior.SaveState}.
+     */
+    public void save(ByteBuffer out) {
+        out.put((byte) (graphicsMode ? 1 : 0));
+        m.save(out);
+    }
+    
+    /**
+     * Reads a state written by {@link #save}.
+     */
+    public void restore(ByteBuffer in) {
+        graphicsMode = in.get() != 0;
+        m.restore(in);
+    }
+    
+    /** The graphics mode and VRAM at one point in time, sharing unchanged pages, see {@link Memory#snapshot}. */
+    public static final class Snapshot {
+        private final boolean graphicsMode;
+        private final Memory.Snapshot m;
+        
+        private Snapshot(GPU gpu) {
+            graphicsMode = gpu.graphicsMode;
+            m = gpu.m.snapshot();
+        }
+    }
+    
+    public Snapshot snapshot() {
+        return new Snapshot(this);
+    }
+    
+    public void restore(Snapshot snapshot) {
+        graphicsMode = snapshot.graphicsMode;
+        m.restore(snapshot.m);
+    }
+    
     /**
      * Called every time the screen will be displayed.
      */
@@ -32,19 +77,30 @@ public final class GPU {
      * @param rColor the register containing the color of the pixel
      */
     public void pxl(byte rX, byte rY, byte rColor) {
-        Celsior.cpu.callRe(rX);
-        byte x = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rX);
+        byte x = machine.cpu.dataBus;
         
-        Celsior.cpu.callRe(rY);
-        byte y = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rY);
+        byte y = machine.cpu.dataBus;
         
-        Celsior.cpu.callRe(rColor);
-        byte color = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rColor);
+        byte color = machine.cpu.dataBus;
 
-        if((x >= 0 && x <= 127) && (y >= 0 && y <= 71))
+        plot(x, y, color);
+    }
+    
+    /**
+     * Puts a pixel at VRAM, or stops the machine if it is off the screen.
+     * @return whether the pixel was on the screen
+     */
+    private boolean plot(byte x, byte y, byte color) {
+        if((x >= 0 && x <= 127) && (y >= 0 && y <= 71)) {
             m.putByte(Byte.toUnsignedInt(y) * 128 + Byte.toUnsignedInt(x), color);
-        else
-            Celsior.error("Pixel coordinates out of bounds: " + x + ", " + y);
+            return true;
+        }
+        
+        machine.error("Pixel coordinates out of bounds: " + x + ", " + y);
+        return false;
     }
     
     /**
@@ -56,20 +112,20 @@ public final class GPU {
      * @param rColor the register containing the color of the line
      */
     public void line(byte rX0, byte rY0, byte rX1, byte rY1, byte rColor) {
-        Celsior.cpu.callRe(rX0);
-        byte x = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rX0);
+        byte x = machine.cpu.dataBus;
         
-        Celsior.cpu.callRe(rY0);
-        byte y = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rY0);
+        byte y = machine.cpu.dataBus;
         
-        Celsior.cpu.callRe(rX1);
-        byte x1 = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rX1);
+        byte x1 = machine.cpu.dataBus;
         
-        Celsior.cpu.callRe(rY1);
-        byte y1 = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rY1);
+        byte y1 = machine.cpu.dataBus;
         
-        Celsior.cpu.callRe(rColor);
-        byte color = Celsior.cpu.dataBus;
+        machine.cpu.callRe(rColor);
+        byte color = machine.cpu.dataBus;
 
         
         int width  = Byte.toUnsignedInt(x1) - Byte.toUnsignedInt(x);
@@ -114,7 +170,8 @@ public final class GPU {
         int i = 0;
         while(i <= longest) { // loop [i] until i <= the longest distance
             
-            pxl(x, y, color); // draw pixel
+            if(!plot(x, y, color)) // draw pixel
+                break;
             
             numerator += shortest; // add shortest distance to "numerator"
             
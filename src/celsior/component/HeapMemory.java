@@ -0,0 +1,154 @@
+package celsior.component;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Memory on the Java heap, stored as an array per page so it can be snapshotted cheaply: a snapshot
+ * shares every page with the memory, and a page is only copied when it is next written (copy-on-write).
+ * Taking a snapshot costs a copy of the page table, and each one only keeps the pages written since the
+ * one before alive.
+ */
+public final class HeapMemory extends AbstractMemory {
+    
+    private static final class HeapSnapshot implements Snapshot {
+        private final byte[][] pages;
+        private final int size;
+        
+        private HeapSnapshot(byte[][] _pages, int _size) {
+            pages = _pages;
+            size = _size;
+        }
+    }
+    
+    private final byte[][] pages;
+    
+    /** Whether each page is also part of a snapshot, and has to be copied before it is written. */
+    private final boolean[] shared;
+    
+    public HeapMemory(int size) {
+        super(size);
+        
+        pages = new byte[pageCount()][];
+        shared = new boolean[pages.length];
+        
+        // the last page is cut short, so addresses past the end still fail
+        for(int i = 0; i < pages.length; i++)
+            pages[i] = new byte[Math.min(PAGE_SIZE, size - (i << PAGE_BITS))];
+    }
+    
+    /**
+     * Gets page {@code page} for writing, copying it first if a snapshot shares it.
+     */
+    private byte[] writablePage(int page) {
+        if(shared[page]) {
+            pages[page] = pages[page].clone();
+            shared[page] = false;
+        }
+        
+        return pages[page];
+    }
+    
+    @Override
+    public void putByte(char address, byte b) {
+        writablePage(address >>> PAGE_BITS)[address & PAGE_MASK] = b;
+        dirty(address >>> PAGE_BITS);
+        written(address, 1);
+    }
+    
+    @Override
+    public void putBytes(int startAddress, byte[] bytes) {
+        int length = bytes.length - 0x10;
+        if(startAddress < 0 || length < 0 || startAddress + length > size)
+            throw new ArrayIndexOutOfBoundsException("Can't put " + length + " bytes at " + startAddress + " into " + size);
+        
+        for(int offset = 0x10, address = startAddress, left = length; left > 0; ) {
+            int inPage = address & PAGE_MASK;
+            int n = Math.min(left, PAGE_SIZE - inPage);
+            
+            System.arraycopy(bytes, offset, writablePage(address >>> PAGE_BITS), inPage, n);
+            dirty(address >>> PAGE_BITS);
+            
+            offset += n;
+            address += n;
+            left -= n;
+        }
+        
+        written(startAddress, length);
+    }
+    
+    @Override
+    public byte getByte(char address) {
+        return pages[address >>> PAGE_BITS][address & PAGE_MASK];
+    }
+    
+    @Override
+    public byte[] getBytes(char from, char to) {
+        if(from > to || to > size)
+            throw new ArrayIndexOutOfBoundsException("Can't get bytes " + (int) from + " to " + (int) to + " of " + size);
+        
+        byte[] bytes = new byte[to - from];
+        for(int address = from, offset = 0; offset < bytes.length; ) {
+            int inPage = address & PAGE_MASK;
+            int n = Math.min(bytes.length - offset, PAGE_SIZE - inPage);
+            
+            System.arraycopy(pages[address >>> PAGE_BITS], inPage, bytes, offset, n);
+            
+            offset += n;
+            address += n;
+        }
+        
+        return bytes;
+    }
+    
+    /**
+     * Takes a snapshot of the contents. From now on every page is copied on its next write.
+     */
+    @Override
+    public Snapshot snapshot() {
+        Arrays.fill(shared, true);
+        return new HeapSnapshot(pages.clone(), size);
+    }
+    
+    @Override
+    public void restore(Snapshot snapshot) {
+        if(!(snapshot instanceof HeapSnapshot))
+            throw new IllegalArgumentException("Snapshot is of another kind of memory");
+        
+        HeapSnapshot heap = (HeapSnapshot) snapshot;
+        if(heap.size != size)
+            throw new IllegalArgumentException("Snapshot has " + heap.size + " bytes, expected " + size);
+        
+        for(int i = 0; i < pages.length; i++) {
+            if(pages[i] == heap.pages[i])
+                continue;
+            
+            pages[i] = heap.pages[i];
+            dirty(i);
+            written(i << PAGE_BITS, pages[i].length);
+        }
+        
+        Arrays.fill(shared, true);
+    }
+    
+    @Override
+    public void save(ByteBuffer out) {
+        out.putInt(size);
+        for(byte[] page : pages)
+            out.put(page);
+    }
+    
+    @Override
+    public void restore(ByteBuffer in) {
+        int savedSize = in.getInt();
+        if(savedSize != size)
+            throw new IllegalArgumentException("Saved memory has " + savedSize + " bytes, expected " + size);
+        
+        for(int i = 0; i < pages.length; i++) {
+            in.get(writablePage(i));
+            dirty(i);
+        }
+        
+        written(0, size);
+    }
+}
@@ -0,0 +1,19 @@
+package celsior.component;
+
+/**
+ * Observes every instruction run through a table made by {@link DispatchTable#instrumented}. For fused
+ * pairs both calls get the first instruction, with the second in {@link DecodedInstruction#next}.
+ * Blocks run by the JIT aren't seen.
+ */
+public interface Instrument {
+    
+    /**
+     * Called before {@code in} executes, with the program counter already past it.
+     */
+    default void before(CPU cpu, DecodedInstruction in) {}
+    
+    /**
+     * Called after {@code in} executed.
+     */
+    default void after(CPU cpu, DecodedInstruction in) {}
+}
@@ -0,0 +1,121 @@
+package celsior.component;
+
+import static celsior.MathUtils.bitAt;
+import static celsior.MathUtils.bytesToShort;
+
+/**
+ * Executes instructions by computing their architectural effect directly, without moving values through
+ * the data bus, address bus, address bus register and ALU latches like {@link CPU}'s bus-accurate
+ * micro-ops do. Registers, flags, the stack, memory and the header RAM end up exactly as they would have.
+ */
+final class MacroOps {
+    
+    private MacroOps() {}
+    
+    /** Handlers for the arithmetic instructions, so fused pairs can run them without instrumentation. */
+    private static final DispatchTable.Handler[] ARITHMETIC = new DispatchTable.Handler[256];
+    
+    /**
+     * Creates the macro-op table from {@code bus}, which keeps handling everything without a direct
+     * implementation (NOP, drawing and unknown instructions).
+     */
+    static DispatchTable table(DispatchTable bus) {
+        DispatchTable t = bus.copy();
+        
+        t.registerBuiltin(0x06, "LBL", 3, (cpu, in) -> {
+            cpu.h0.putByte(in.a, in.b);
+            cpu.h1.putByte(in.a, in.c);
+        });
+        t.registerBuiltin(0x07, "JMP", 1, (cpu, in) -> jmp(cpu, in.a));
+        t.registerBuiltin(0x08, "JIF", 2, (cpu, in) -> {
+            if(bitAt(cpu.regs[CPU.FLAGS], in.b))
+                jmp(cpu, in.a);
+        });
+        t.registerBuiltin(0x09, "MOV", 2, (cpu, in) -> cpu.writeRegister(in.a, in.b));
+        t.registerBuiltin(0x0A, "PSH", 1, (cpu, in) -> cpu.stack.push(cpu.readRegister(in.a)));
+        t.registerBuiltin(0x0B, "RTR", 2, (cpu, in) -> cpu.writeRegister(in.b, cpu.readRegister(in.a)));
+        t.registerBuiltin(0x0C, "MTR", 3, (cpu, in) -> cpu.writeRegister(in.c, cpu.bus.read(bytesToShort(in.a, in.b))));
+        t.registerBuiltin(0x0D, "RTM", 3, (cpu, in) -> cpu.bus.write(bytesToShort(in.b, in.c), cpu.readRegister(in.a)));
+        t.registerBuiltin(0x0E, "MTM", 4, (cpu, in) -> cpu.bus.write(bytesToShort(in.c, in.b), cpu.bus.read(bytesToShort(in.a, in.b))));
+        t.registerBuiltin(0x0F, "VTR", 2, (cpu, in) -> cpu.writeRegister(in.b, cpu.bus.read(0xFFFF - in.a)));
+        t.registerBuiltin(0x10, "RTV", 2, (cpu, in) -> cpu.bus.write(0xFFFF - in.b, cpu.readRegister(in.a)));
+        t.registerBuiltin(0x11, "FTR", 1, (cpu, in) -> cpu.writeRegister(in.a, cpu.regs[CPU.FLAGS]));
+        t.registerBuiltin(0x12, "CMP", 2, (cpu, in) -> cpu.regs[CPU.FLAGS] = ALU.compare(cpu.readRegister(in.a), cpu.readRegister(in.b)));
+        
+        arithmetic(t, 0x01, "ADD", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) + cpu.readRegister(in.b))));
+        arithmetic(t, 0x02, "SUB", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) - cpu.readRegister(in.b))));
+        arithmetic(t, 0x03, "MUL", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) * cpu.readRegister(in.b))));
+        arithmetic(t, 0x04, "RGT", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) >>> in.b)));
+        // the ALU shifts right by 8 - num, see CPU.lft
+        arithmetic(t, 0x05, "LFT", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) >>> (byte) (8 - in.b))));
+        arithmetic(t, 0x13, "AND", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) & cpu.readRegister(in.b))));
+        arithmetic(t, 0x14, "NOT", 2, (cpu, in) -> cpu.writeRegister(in.b, (byte) ~cpu.readRegister(in.a)));
+        arithmetic(t, 0x15, "OR", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) | cpu.readRegister(in.b))));
+        arithmetic(t, 0x16, "XOR", 3, (cpu, in) -> cpu.writeRegister(in.c, (byte) (cpu.readRegister(in.a) ^ cpu.readRegister(in.b))));
+        
+        t.registerPair(0x12, 0x08, MacroOps::compareAndBranch);
+        
+        return t;
+    }
+    
+    private static void arithmetic(DispatchTable t, int opcode, String name, int operands, DispatchTable.Handler handler) {
+        ARITHMETIC[opcode] = handler;
+        t.registerBuiltin(opcode, name, operands, handler);
+        t.registerPair(0x09, opcode, MacroOps::moveAndCompute);
+    }
+    
+    /**
+     * CMP followed by JIF. Branches on the compared values directly instead of testing a bit of the
+     * flags register, which is still updated since programs can read it later.
+     */
+    private static void compareAndBranch(CPU cpu, DecodedInstruction cmp) {
+        DecodedInstruction jif = cmp.next;
+        
+        byte a = cpu.readRegister(cmp.a);
+        byte b = cpu.readRegister(cmp.b);
+        cpu.regs[CPU.FLAGS] = ALU.compare(a, b);
+        
+        // the interpreter doesn't get to the JIF if the CMP aborted
+        if(cpu.machine.isStopped())
+            return;
+        
+        cpu.enter(jif);
+        
+        boolean taken;
+        switch(jif.b) {
+            case 0: taken = a == b; break;
+            case 1: taken = a > b; break;
+            case 2: taken = a < b; break;
+            case 3: taken = a >= b; break;
+            case 4: taken = a <= b; break;
+            case 5: taken = a != b; break;
+            default: taken = bitAt(cpu.regs[CPU.FLAGS], jif.b);
+        }
+        
+        if(taken)
+            jmp(cpu, jif.a);
+        
+        cpu.cycles++;
+    }
+    
+    /**
+     * MOV followed by an arithmetic instruction, run without dispatching twice.
+     */
+    private static void moveAndCompute(CPU cpu, DecodedInstruction mov) {
+        DecodedInstruction op = mov.next;
+        
+        cpu.writeRegister(mov.a, mov.b);
+        
+        if(cpu.machine.isStopped())
+            return;
+        
+        cpu.enter(op);
+        ARITHMETIC[Byte.toUnsignedInt(op.opcode)].execute(cpu, op);
+        
+        cpu.cycles++;
+    }
+    
+    private static void jmp(CPU cpu, byte index) {
+        cpu.progCounter = bytesToShort(cpu.h0.getByte(index), cpu.h1.getByte(index));
+    }
+}
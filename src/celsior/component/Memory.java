@@ -1,40 +1,131 @@
 package celsior.component;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLongArray;
 
-public class Memory {
+/**
+ * Byte-addressed memory, divided into pages of {@value #PAGE_SIZE} bytes for snapshots and dirty
+ * tracking. {@link HeapMemory} keeps the bytes in arrays on the Java heap, {@link DirectMemory} in a
+ * direct buffer outside it, which native code and other processes can share. {@link #allocate} picks one
+ * according to the {@code celsior.memory} system property, {@code heap} (the default) or {@code direct}.
+ */
+public interface Memory {
     
-    public Memory(int size) {
-        m = new byte[size];
+    /** Notified after bytes in a {@link Memory} have been overwritten. */
+    interface WriteListener {
+        void written(int address, int length);
     }
     
-    public void putByte(char address, byte b) {
-        m[address] = b;
+    /**
+     * The contents of a memory at one point in time. Never changes, restoring it doesn't consume it. Can
+     * only be restored into a memory of the same kind and size.
+     */
+    interface Snapshot {
     }
     
-    public void putByte(int address, int b) {
-        putByte((char) address, (byte) b);
+    /**
+     * The pages of a {@link Memory} written since a consumer last looked, so it only has to process
+     * those. Each consumer tracks its own, see {@link #trackDirtyPages}. Fetching is safe from any thread,
+     * but a write racing with a fetch on another thread may be missed until the page is written again;
+     * consumers that can't allow that fetch while the writer is paused.
+     */
+    final class DirtyPages {
+        private final AtomicLongArray bits;
+        
+        DirtyPages(int pageCount) {
+            bits = new AtomicLongArray((pageCount + 63) >>> 6);
+            
+            for(int page = 0; page < pageCount; page++)
+                mark(page);
+        }
+        
+        void mark(int page) {
+            int word = page >>> 6;
+            long bit = 1L << page;
+            
+            long old;
+            while(((old = bits.get(word)) & bit) == 0 && !bits.compareAndSet(word, old, old | bit));
+        }
+        
+        /**
+         * Gets the pages written since the last call and clears them. Page {@code p} is bit
+         * {@code p & 63} of word {@code p >>> 6}.
+         */
+        public long[] fetchAndClear() {
+            long[] dirty = new long[bits.length()];
+            for(int i = 0; i < dirty.length; i++)
+                dirty[i] = bits.get(i) == 0 ? 0 : bits.getAndSet(i, 0);
+            
+            return dirty;
+        }
+        
+        public static boolean isDirty(long[] dirty, int page) {
+            return (dirty[page >>> 6] & 1L << page) != 0;
+        }
     }
     
-    public void putBytes(int startAddress, byte[] bytes) {
-        System.arraycopy(bytes, 0x10, m, startAddress, bytes.length - 0x10);
-    }
+    int PAGE_BITS = 8;
+    int PAGE_SIZE = 1 << PAGE_BITS;
     
-    public byte getByte(char address) {
-        return m[address];
+    /**
+     * Creates a memory of {@code size} bytes, all 0, of the kind the {@code celsior.memory} system
+     * property selects.
+     */
+    static Memory allocate(int size) {
+        return AbstractMemory.DIRECT ? new DirectMemory(size) : new HeapMemory(size);
     }
     
-    public byte getByte(int address) {
-        return getByte((char) address);
-    }
+    void setWriteListener(WriteListener listener);
     
-    public byte[] getBytes(char from, char to) {
-        return Arrays.copyOfRange(m, from, to);
-    }
+    /**
+     * Starts tracking which pages are written for a new consumer. Every page starts out dirty, so the
+     * first fetch covers the whole memory. Writes cost a little more for each tracker, so remove it with
+     * {@link #untrackDirtyPages} when done.
+     */
+    DirtyPages trackDirtyPages();
     
-    public int size() {
-        return m.length;
-    }
+    void untrackDirtyPages(DirtyPages tracker);
+    
+    void putByte(char address, byte b);
+    
+    void putByte(int address, int b);
+    
+    /**
+     * Copies a ROM's program, everything in {@code bytes} after its 16-byte header, to {@code startAddress}.
+     * @throws ArrayIndexOutOfBoundsException if it doesn't fit
+     */
+    void putBytes(int startAddress, byte[] bytes);
+    
+    byte getByte(char address);
+    
+    byte getByte(int address);
+    
+    byte[] getBytes(char from, char to);
+    
+    int size();
+    
+    /**
+     * Takes a snapshot of the contents. Cheap: pages are only copied when they are next written.
+     */
+    Snapshot snapshot();
+    
+    /**
+     * Restores the contents of {@code snapshot}, notifying the write listener of the pages that differ.
+     * @throws IllegalArgumentException if it was taken of a different kind or size of memory
+     */
+    void restore(Snapshot snapshot);
+    
+    /** Number of bytes {@link #save} writes. */
+    int stateSize();
+    
+    /**
+     * Writes the size and contents to {@code out}, for {@link celsior.SaveState}.
+     */
+    void save(ByteBuffer out);
     
-    private final byte[] m;
+    /**
+     * Reads contents written by {@link #save}, notifying the write listener of the whole memory.
+     * @throws IllegalArgumentException if they were saved from a memory of a different size
+     */
+    void restore(ByteBuffer in);
 }
@@ -0,0 +1,60 @@
+package celsior.component;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Counts how often each opcode follows each other opcode in the executed instruction stream, to find
+ * pairs worth fusing (see {@link DecodedInstruction#next}). Instructions run by the JIT aren't seen.
+ */
+public final class PairProfile implements Instrument {
+    
+    private final long[] counts = new long[256 * 256];
+    private int previous = -1;
+    private long total;
+    
+    @Override
+    public void before(CPU cpu, DecodedInstruction in) {
+        record(in.opcode);
+        
+        if(in.next != null)
+            record(in.next.opcode);
+    }
+    
+    public void record(byte opcode) {
+        int op = Byte.toUnsignedInt(opcode);
+        
+        if(previous >= 0) {
+            counts[previous << 8 | op]++;
+            total++;
+        }
+        
+        previous = op;
+    }
+    
+    /**
+     * Lists the most frequent pairs, most frequent first.
+     * @param names table to get the opcode mnemonics from
+     * @param limit maximum number of pairs to list
+     * @return one line per pair with its count and share of all pairs
+     */
+    public String report(DispatchTable names, int limit) {
+        List<Integer> pairs = new ArrayList<>();
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] > 0)
+                pairs.add(i);
+        }
+        
+        pairs.sort((x, y) -> Long.compare(counts[y], counts[x]));
+        
+        StringBuilder report = new StringBuilder("Opcode pairs (" + total + " total):\n");
+        for(int i = 0; i < Math.min(limit, pairs.size()); i++) {
+            int pair = pairs.get(i);
+            report.append(String.format("%-5s %-5s %12d %6.2f%%%n",
+                    names.name((byte) (pair >> 8)), names.name((byte) pair),
+                    counts[pair], 100.0 * counts[pair] / total));
+        }
+        
+        return report.toString();
+    }
+}
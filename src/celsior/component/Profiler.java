@@ -0,0 +1,210 @@
+package celsior.component;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts executed instructions per opcode, per address and per label region, and measures the time
+ * spent in GPU instructions. A label region starts at an address a {@code LBL} instruction pointed a
+ * label at and runs up to the next such address. Every instruction is counted, nothing is sampled;
+ * instructions run by the JIT aren't seen, so turn it off while profiling.
+ * <p>
+ * Results come as a flat text report ({@link #report}) or as folded stacks ({@link #folded}), one line
+ * per address like {@code rom;label_1@0x0009;ADD@0x000C 1234}, which flame graph tools read.
+ */
+public final class Profiler implements Instrument {
+    
+    private static final int ADDRESSES = 65536;
+    
+    private final long[] opcodeCounts = new long[256];
+    private final long[] opcodeNanos = new long[256];
+    private final long[] addressCounts = new long[ADDRESSES];
+    
+    /** Opcode executed at each address, for reports. */
+    private final byte[] opcodes = new byte[ADDRESSES];
+    
+    /** Label index pointing at each address, -1 for none. */
+    private final int[] labels = new int[ADDRESSES];
+    
+    /** Opcodes whose time is measured. */
+    private final boolean[] timed = new boolean[256];
+    
+    private long total;
+    private long started;
+    
+    /**
+     * Creates a profiler timing the GPU instructions PXL, LINE, PRT and GMT.
+     */
+    public Profiler() {
+        Arrays.fill(labels, -1);
+        
+        for(int opcode = 0x50; opcode <= 0x53; opcode++)
+            timed[opcode] = true;
+    }
+    
+    /**
+     * Also measures the time spent in {@code opcode}, for example a device instruction registered with
+     * {@link CPU#registerInstruction}. Timing costs two clock reads per execution.
+     */
+    public void time(int opcode) {
+        timed[opcode] = true;
+    }
+    
+    @Override
+    public void before(CPU cpu, DecodedInstruction in) {
+        count(in);
+        
+        if(in.next != null)
+            count(in.next);
+        
+        if(timed[Byte.toUnsignedInt(in.opcode)])
+            started = System.nanoTime();
+    }
+    
+    private void count(DecodedInstruction in) {
+        int op = Byte.toUnsignedInt(in.opcode);
+        
+        opcodeCounts[op]++;
+        addressCounts[in.address]++;
+        opcodes[in.address] = in.opcode;
+        total++;
+    }
+    
+    @Override
+    public void after(CPU cpu, DecodedInstruction in) {
+        int op = Byte.toUnsignedInt(in.opcode);
+        
+        if(timed[op])
+            opcodeNanos[op] += System.nanoTime() - started;
+        
+        if(in.opcode == 0x06) // LBL
+            labels[Byte.toUnsignedInt(in.b) << 8 | Byte.toUnsignedInt(in.c)] = Byte.toUnsignedInt(in.a);
+    }
+    
+    /** Number of instructions counted. */
+    public long getTotal() {
+        return total;
+    }
+    
+    /**
+     * Formats the counts as a flat report: every opcode, the {@code limit} hottest addresses, and every
+     * label region, each sorted by count.
+     * @param names table to get the opcode mnemonics from
+     */
+    public String report(DispatchTable names, int limit) {
+        StringBuilder report = new StringBuilder();
+        
+        long nanos = 0;
+        for(long n : opcodeNanos)
+            nanos += n;
+        report.append(String.format("Profile: %d instructions, %.3f ms in timed instructions%n", total, nanos / 1e6));
+        
+        report.append(String.format("%nOpcodes:%n"));
+        for(int op : sorted(opcodeCounts, 256)) {
+            report.append(String.format("%-5s %12d %6.2f%%", names.name((byte) op), opcodeCounts[op], percent(opcodeCounts[op])));
+            if(timed[op])
+                report.append(String.format(" %10.3f ms %8.1f ns each", opcodeNanos[op] / 1e6, (double) opcodeNanos[op] / opcodeCounts[op]));
+            report.append(String.format("%n"));
+        }
+        
+        report.append(String.format("%nHottest addresses:%n"));
+        for(int address : sorted(addressCounts, limit)) {
+            report.append(String.format("0x%04X %-5s %12d %6.2f%%  %s%n", address, names.name(opcodes[address]),
+                    addressCounts[address], percent(addressCounts[address]), regionName(regionStart(address))));
+        }
+        
+        long[] regionCounts = regionCounts();
+        report.append(String.format("%nLabel regions:%n"));
+        for(int start : sorted(regionCounts, ADDRESSES)) {
+            report.append(String.format("%-18s 0x%04X-0x%04X %12d %6.2f%%%n", regionName(start), start,
+                    regionEnd(start), regionCounts[start], percent(regionCounts[start])));
+        }
+        
+        return report.toString();
+    }
+    
+    /**
+     * Formats the counts as folded stacks, one line per executed address: {@code root}, the label region
+     * and the instruction, followed by its count.
+     */
+    public String folded(DispatchTable names, String root) {
+        StringBuilder folded = new StringBuilder();
+        String frame = root.replace(';', '_').replace(' ', '_');
+        
+        int start = -1;
+        for(int address = 0; address < ADDRESSES; address++) {
+            if(labels[address] >= 0)
+                start = address;
+            if(addressCounts[address] == 0)
+                continue;
+            
+            folded.append(frame).append(';').append(regionName(start).replace(' ', '_'))
+                    .append(';').append(names.name(opcodes[address]))
+                    .append(String.format("@0x%04X %d%n", address, addressCounts[address]));
+        }
+        
+        return folded.toString();
+    }
+    
+    private double percent(long count) {
+        return total > 0 ? 100.0 * count / total : 0;
+    }
+    
+    /**
+     * Lists the indices of the non-zero {@code counts}, highest first.
+     */
+    private static List<Integer> sorted(long[] counts, int limit) {
+        List<Integer> indices = new ArrayList<>();
+        for(int i = 0; i < counts.length; i++) {
+            if(counts[i] > 0)
+                indices.add(i);
+        }
+        
+        indices.sort((x, y) -> Long.compare(counts[y], counts[x]));
+        return indices.subList(0, Math.min(limit, indices.size()));
+    }
+    
+    /**
+     * Gets the start of the label region {@code address} is in, -1 if no label points at or before it.
+     */
+    private int regionStart(int address) {
+        for(int a = address; a >= 0; a--) {
+            if(labels[a] >= 0)
+                return a;
+        }
+        
+        return -1;
+    }
+    
+    private int regionEnd(int start) {
+        for(int a = start + 1; a < ADDRESSES; a++) {
+            if(labels[a] >= 0)
+                return a - 1;
+        }
+        
+        return ADDRESSES - 1;
+    }
+    
+    private String regionName(int start) {
+        return start < 0 ? "(before labels)" : String.format("label %d@0x%04X", labels[start], start);
+    }
+    
+    /**
+     * Sums the address counts per region, indexed by the region's start. Counts before the first label
+     * aren't included.
+     */
+    private long[] regionCounts() {
+        long[] counts = new long[ADDRESSES];
+        int start = -1;
+        
+        for(int address = 0; address < ADDRESSES; address++) {
+            if(labels[address] >= 0)
+                start = address;
+            if(start >= 0)
+                counts[start] += addressCounts[address];
+        }
+        
+        return counts;
+    }
+}
@@ -26,7 +26,81 @@ public class Stack implements Cloneable {
         return stack[stackPtr--];
     }
     
+    /** Index of the top element, -1 when empty. */
+    public int getPointer() {
+        return stackPtr;
+    }
+    
     public byte getElementAt(int pointer) {
         return stack[pointer];
     }
+    
+    /** Number of bytes {@link #save} writes. */
+    public int stateSize() {
+        return 8 + stack.length;
+    }
+    
+    /**
+     * Writes the size, pointer and contents to {@code out}, for {@link celsior.SaveState}.
+     */
+    public void save(java.nio.ByteBuffer out) {
+        out.putInt(stack.length);
+        out.putInt(stackPtr);
+        out.put(stack);
+    }
+    
+    /**
+     * Reads a stack written by {@link #save}.
+     * @throws IllegalArgumentException if it was saved from a stack of a different size
+     */
+    public void restore(java.nio.ByteBuffer in) {
+        int size = in.getInt();
+        if(size != stack.length)
+            throw new IllegalArgumentException("Saved stack has " + size + " elements, expected " + stack.length);
+        
+        int pointer = in.getInt();
+        if(pointer < -1 || pointer >= size)
+            throw new IllegalArgumentException("Saved stack pointer out of range: " + pointer);
+        
+        in.get(stack);
+        stackPtr = pointer;
+    }
+    
+    public Stack copy() {
+        Stack copy = new Stack(stack.length);
+        copy.set(this);
+        return copy;
+    }
+    
+    /** Overwrites the contents and pointer with those of {@code other}, which must be the same size. */
+    public void set(Stack other) {
+        System.arraycopy(other.stack, 0, stack, 0, stack.length);
+        stackPtr = other.stackPtr;
+    }
+    
+    /** Stacks are equal if they hold the same values, popped values don't count. */
+    @Override
+    public boolean equals(Object o) {
+        if(!(o instanceof Stack))
+            return false;
+        
+        Stack other = (Stack) o;
+        if(stackPtr != other.stackPtr)
+            return false;
+        
+        for(int i = 0; i <= stackPtr; i++) {
+            if(stack[i] != other.stack[i])
+                return false;
+        }
+        
+        return true;
+    }
+    
+    @Override
+    public int hashCode() {
+        int hash = stackPtr;
+        for(int i = 0; i <= stackPtr; i++)
+            hash = 31 * hash + stack[i];
+        return hash;
+    }
 }
@@ -0,0 +1,213 @@
+package celsior.jit;
+
+import celsior.Log;
+import celsior.component.CPU;
+import celsior.component.Cartridge;
+import celsior.component.DecodedInstruction;
+import java.io.*;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * Ahead-of-time translation of a whole ROM. Code reachable from address 0 is found by following
+ * fall-through and every label defined by a reachable LBL, and each block is compiled before the
+ * program starts. The generated classes are cached on disk, keyed by a hash of the ROM, so later runs
+ * of the same program only have to load them.
+ */
+public final class Aot {
+    
+    private static final int MAGIC = 0x43414F54; // "CAOT"
+    
+    /** Bump whenever {@link BlockCompiler} output changes, so stale caches are ignored. */
+    private static final int VERSION = 5;
+    
+    private Aot() {}
+    
+    /**
+     * Installs translations of the program in the CPU's memory into its JIT, reading them from the cache
+     * directory if this ROM has been translated before. The CPU must have its JIT enabled and the ROM
+     * already loaded. The cache is keyed on the ROM alone, so nothing is installed once memory holds
+     * anything else, such as a loaded save state or code the program has written.
+     * @param cpu the CPU the ROM was loaded into
+     * @param rom the ROM file's contents, used as the cache key
+     * @return the number of blocks installed
+     */
+    public static int load(CPU cpu, byte[] rom) {
+        if(!pristine(cpu, rom)) {
+            Log.warn("Not AOT compiling, memory no longer holds just the ROM.");
+            return 0;
+        }
+        
+        Path cacheFile = cacheDirectory().resolve(hash(rom) + ".aot");
+        
+        List<Translation> translations = null;
+        if(Files.isRegularFile(cacheFile)) {
+            try {
+                translations = read(cacheFile);
+            } catch (IOException ex) {
+                Log.warn("Ignoring unreadable AOT cache " + cacheFile + ": " + ex.getLocalizedMessage());
+            }
+        }
+        
+        if(translations == null) {
+            translations = translate(cpu);
+            
+            try {
+                write(cacheFile, translations);
+            } catch (IOException ex) {
+                Log.warn("Failed to write AOT cache " + cacheFile + ": " + ex.getLocalizedMessage());
+            }
+        }
+        
+        int installed = 0;
+        for(Translation t : translations) {
+            if(cpu.jit.install(t.start, t.end, t.instructions, t.classBytes) != null)
+                installed++;
+        }
+        
+        Log.info("Installed " + installed + " AOT compiled blocks");
+        return installed;
+    }
+    
+    /**
+     * Whether the CPU's memory holds the program in {@code rom} followed by zeroes, as
+     * {@code Machine.load} leaves it.
+     */
+    private static boolean pristine(CPU cpu, byte[] rom) {
+        for(int i = 0; i < cpu.m.size(); i++) {
+            int offset = Cartridge.HEADER_SIZE + i;
+            if(cpu.m.getByte(i) != (offset < rom.length ? rom[offset] : 0))
+                return false;
+        }
+        
+        return true;
+    }
+    
+    /**
+     * Compiles every block reachable from address 0 of the CPU's memory.
+     */
+    static List<Translation> translate(CPU cpu) {
+        List<Translation> translations = new ArrayList<>();
+        
+        int size = cpu.m.size();
+        Set<Integer> seen = new HashSet<>();
+        Deque<Integer> entries = new ArrayDeque<>();
+        entries.add(0);
+        
+        while(!entries.isEmpty()) {
+            int start = entries.pop();
+            if(start >= size || !seen.add(start))
+                continue;
+            
+            List<DecodedInstruction> block = BlockCompiler.scan(cpu.decodeCache, start, size);
+            if(block.isEmpty())
+                continue;
+            
+            for(DecodedInstruction in : block) {
+                if(in.opcode == 0x06) // LBL
+                    entries.add(Byte.toUnsignedInt(in.b) << 8 | Byte.toUnsignedInt(in.c));
+            }
+            
+            DecodedInstruction last = block.get(block.size() - 1);
+            int end = last.address + last.length;
+            
+            if(last.opcode != 0x07) // everything but JMP can fall through
+                entries.add(end);
+            
+            translations.add(new Translation(start, end, block.size(),
+                    BlockCompiler.compile(Jit.className(start), block)));
+        }
+        
+        return translations;
+    }
+    
+    private static List<Translation> read(Path file) throws IOException {
+        try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                return null;
+            
+            int count = in.readInt();
+            List<Translation> translations = new ArrayList<>(count);
+            
+            for(int i = 0; i < count; i++) {
+                int start = in.readInt();
+                int end = in.readInt();
+                int instructions = in.readInt();
+                
+                byte[] classBytes = new byte[in.readInt()];
+                in.readFully(classBytes);
+                
+                translations.add(new Translation(start, end, instructions, classBytes));
+            }
+            
+            return translations;
+        }
+    }
+    
+    private static void write(Path file, List<Translation> translations) throws IOException {
+        Files.createDirectories(file.getParent());
+        
+        // write to a temporary file first so concurrent runs never see half a cache
+        Path temp = Files.createTempFile(file.getParent(), "celsior", ".tmp");
+        try {
+            try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(translations.size());
+                
+                for(Translation t : translations) {
+                    out.writeInt(t.start);
+                    out.writeInt(t.end);
+                    out.writeInt(t.instructions);
+                    out.writeInt(t.classBytes.length);
+                    out.write(t.classBytes);
+                }
+            }
+            
+            Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+    
+    /**
+     * Directory holding cached translations, {@code ~/.celsior/aot} unless the {@code celsior.aot.dir}
+     * system property says otherwise.
+     */
+    static Path cacheDirectory() {
+        String dir = System.getProperty("celsior.aot.dir");
+        if(dir != null)
+            return Paths.get(dir);
+        
+        return Paths.get(System.getProperty("user.home"), ".celsior", "aot");
+    }
+    
+    private static String hash(byte[] rom) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-256").digest(rom);
+            
+            StringBuilder hex = new StringBuilder();
+            for(byte b : digest)
+                hex.append(String.format("%02x", b));
+            
+            return hex.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    static final class Translation {
+        Translation(int _start, int _end, int _instructions, byte[] _classBytes) {
+            start = _start;
+            end = _end;
+            instructions = _instructions;
+            classBytes = _classBytes;
+        }
+        
+        final int start, end;
+        final int instructions;
+        final byte[] classBytes;
+    }
+}
@@ -0,0 +1,475 @@
+package celsior.jit;
+
+import celsior.component.CPU;
+import celsior.component.DecodeCache;
+import celsior.component.DecodedInstruction;
+import celsior.component.DispatchTable;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import static celsior.MathUtils.bytesToShort;
+
+/**
+ * Finds straight-line basic blocks and translates them to JVM classes implementing {@link CompiledBlock}.
+ * Most instructions are compiled to code working directly on the CPU's register file, bus and header
+ * RAM, computing their architectural effect the way {@code MacroOps} does, so the generated code skips
+ * fetching, decoding, dispatching and the bus-accurate micro-ops entirely. The data bus, address bus
+ * register and ALU latches are left as they were. Instructions that pop or push the stack and drawing
+ * instructions become a call to the matching {@code CPU} (or {@code GPU}) method instead.
+ * <p>
+ * The generated code counts its own instructions into {@code CPU.cycles}, bringing the count up to date
+ * before every bus access and every call, so memory-mapped devices see the same cycle count as under
+ * the interpreter, and a called instruction that throws leaves the ones before it counted.
+ */
+final class BlockCompiler {
+    
+    /** Upper bound on the number of instructions in one block. */
+    static final int MAX_INSTRUCTIONS = 64;
+    
+    /** Upper bound on the size of one block in bytes. */
+    static final int MAX_BYTES = MAX_INSTRUCTIONS * DecodeCache.MAX_LENGTH;
+    
+    private static final String CPU_CLASS = "celsior/component/CPU";
+    private static final String GPU_CLASS = "celsior/component/GPU";
+    private static final String ALU_CLASS = "celsior/component/ALU";
+    private static final String BUS_CLASS = "celsior/component/Bus";
+    private static final String MEMORY_CLASS = "celsior/component/Memory";
+    private static final String MACHINE_CLASS = "celsior/Machine";
+    
+    private BlockCompiler() {}
+    
+    /**
+     * Collects the instructions of the basic block starting at {@code start}. The block ends after a
+     * JMP or JIF, after a drawing instruction that may report an error, after a store into the block's
+     * own code, or before anything the interpreter has to handle itself (NOP, unknown or re-registered
+     * instructions, nonexistent registers).
+     * @param cache the CPU's decode cache
+     * @param start address of the first instruction
+     * @param memorySize size of the CPU's memory, blocks don't wrap around its end
+     * @return the instructions in the block, empty if nothing at {@code start} can be compiled
+     */
+    static List<DecodedInstruction> scan(DecodeCache cache, int start, int memorySize) {
+        List<DecodedInstruction> block = new ArrayList<>();
+        
+        int address = start;
+        while(block.size() < MAX_INSTRUCTIONS) {
+            DecodedInstruction in = cache.fetch(address);
+            
+            if(!compilable(cache.getTable(), in) || address + in.length > memorySize)
+                break;
+            
+            block.add(in);
+            address += in.length;
+            
+            if(endsBlock(in, start))
+                break;
+        }
+        
+        return block;
+    }
+    
+    /**
+     * Generates the class for {@code block}.
+     * @param className internal name of the class to generate
+     * @param block instructions found by {@link #scan}
+     * @return the class file bytes
+     */
+    static byte[] compile(String className, List<DecodedInstruction> block) {
+        Code code = new Code(new ClassFile(className, "celsior/jit/CompiledBlock"));
+        
+        // the register file is final, local 2 holds it for the whole block
+        code.cpuField("regs", "[B");
+        code.op(ClassFile.ASTORE_2);
+        
+        // whether the program counter still has to be moved past the last instruction
+        boolean pcStale = false;
+        
+        for(DecodedInstruction in : block) {
+            if(inline(code, in)) {
+                pcStale = in.opcode != 0x07 && in.opcode != 0x08; // JMP and JIF set it themselves
+            } else {
+                call(code, in);
+                pcStale = false;
+            }
+            
+            code.uncounted++; // like the interpreter, count an instruction once it has executed
+        }
+        
+        if(pcStale) {
+            DecodedInstruction last = block.get(block.size() - 1);
+            code.setProgCounter(last.address + last.length);
+        }
+        
+        code.countCycles();
+        code.op(ClassFile.RETURN);
+        
+        return code.cf.toBytes("run", "(L" + CPU_CLASS + ";)V", code.bytes.toByteArray(), 8, 3);
+    }
+    
+    /**
+     * Emits the architectural effect of {@code in} directly, like the macro-op handler does.
+     * @return false if {@code in} has to be {@linkplain #call called} instead
+     */
+    private static boolean inline(Code code, DecodedInstruction in) {
+        int op = Byte.toUnsignedInt(in.opcode);
+        
+        // popping and pushing can fail, the micro-ops report that
+        byte[] o = {in.a, in.b, in.c, in.d, in.e};
+        for(int i = 0; i < o.length; i++) {
+            if((REGISTER_OPERANDS[op] >> i & 1) == 1 && o[i] == CPU.STACK)
+                return false;
+        }
+        
+        switch(op) {
+            case 0x01: // ADD
+                compute(code, in, ClassFile.IADD);
+                return true;
+            case 0x02: // SUB
+                compute(code, in, ClassFile.ISUB);
+                return true;
+            case 0x03: // MUL
+                compute(code, in, ClassFile.IMUL);
+                return true;
+            case 0x04: // RGT
+                code.register(in.c);
+                code.loadRegister(in.a);
+                code.constant(in.b);
+                code.op(ClassFile.IUSHR);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x05: // LFT, the ALU shifts right by 8 - num, see CPU.lft
+                code.register(in.c);
+                code.loadRegister(in.a);
+                code.constant((byte) (8 - in.b));
+                code.op(ClassFile.IUSHR);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x06: // LBL
+                label(code, "h0", in.a, in.b);
+                label(code, "h1", in.a, in.c);
+                return true;
+            case 0x07: // JMP
+                code.op(ClassFile.ALOAD_1);
+                jumpTarget(code, in.a);
+                code.putProgCounter();
+                return true;
+            case 0x08: { // JIF, without branching: next ^ ((next ^ target) & -(flag bit))
+                int next = in.address + in.length;
+                
+                code.op(ClassFile.ALOAD_1);
+                code.constant(next);
+                code.constant(next);
+                jumpTarget(code, in.a);
+                code.op(ClassFile.IXOR);
+                code.loadRegister(CPU.FLAGS);
+                code.constant(in.b);
+                code.op(ClassFile.ISHR);
+                code.op(ClassFile.ICONST_1);
+                code.op(ClassFile.IAND);
+                code.op(ClassFile.INEG);
+                code.op(ClassFile.IAND);
+                code.op(ClassFile.IXOR);
+                code.putProgCounter();
+                return true;
+            }
+            case 0x09: // MOV
+                code.register(in.a);
+                code.constant(in.b);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x0B: // RTR
+                code.register(in.b);
+                code.loadRegister(in.a);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x0C: // MTR
+                code.countCycles();
+                code.register(in.c);
+                read(code, bytesToShort(in.a, in.b));
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x0D: // RTM
+                code.countCycles();
+                code.cpuField("bus", "L" + BUS_CLASS + ";");
+                code.constant(bytesToShort(in.b, in.c));
+                code.loadRegister(in.a);
+                code.invoke(ClassFile.INVOKEVIRTUAL, BUS_CLASS, "write", "(IB)V");
+                return true;
+            case 0x0E: // MTM
+                code.countCycles();
+                code.cpuField("bus", "L" + BUS_CLASS + ";");
+                code.constant(bytesToShort(in.c, in.b));
+                read(code, bytesToShort(in.a, in.b));
+                code.invoke(ClassFile.INVOKEVIRTUAL, BUS_CLASS, "write", "(IB)V");
+                return true;
+            case 0x0F: // VTR
+                code.countCycles();
+                code.register(in.b);
+                read(code, 0xFFFF - in.a);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x10: // RTV
+                code.countCycles();
+                code.cpuField("bus", "L" + BUS_CLASS + ";");
+                code.constant(0xFFFF - in.b);
+                code.loadRegister(in.a);
+                code.invoke(ClassFile.INVOKEVIRTUAL, BUS_CLASS, "write", "(IB)V");
+                return true;
+            case 0x11: // FTR
+                code.register(in.a);
+                code.loadRegister(CPU.FLAGS);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x12: // CMP
+                code.register(CPU.FLAGS);
+                code.loadRegister(in.a);
+                code.loadRegister(in.b);
+                code.invoke(ClassFile.INVOKESTATIC, ALU_CLASS, "compare", "(BB)B");
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x13: // AND
+                compute(code, in, ClassFile.IAND);
+                return true;
+            case 0x14: // NOT
+                code.register(in.b);
+                code.loadRegister(in.a);
+                code.op(ClassFile.ICONST_M1);
+                code.op(ClassFile.IXOR);
+                code.op(ClassFile.BASTORE);
+                return true;
+            case 0x15: // OR
+                compute(code, in, ClassFile.IOR);
+                return true;
+            case 0x16: // XOR
+                compute(code, in, ClassFile.IXOR);
+                return true;
+            default:
+                return false;
+        }
+    }
+    
+    /** regs[c] = regs[a] (operation) regs[b] */
+    private static void compute(Code code, DecodedInstruction in, int operation) {
+        code.register(in.c);
+        code.loadRegister(in.a);
+        code.loadRegister(in.b);
+        code.op(operation);
+        code.op(ClassFile.BASTORE);
+    }
+    
+    /** Pushes the byte the bus reads at {@code address}. */
+    private static void read(Code code, int address) {
+        code.cpuField("bus", "L" + BUS_CLASS + ";");
+        code.constant(address);
+        code.invoke(ClassFile.INVOKEVIRTUAL, BUS_CLASS, "read", "(I)B");
+    }
+    
+    /** cpu.(header).putByte(index, value) */
+    private static void label(Code code, String header, byte index, byte value) {
+        code.cpuField(header, "L" + MEMORY_CLASS + ";");
+        code.constant(index);
+        code.constant(value);
+        code.invoke(ClassFile.INVOKEINTERFACE, MEMORY_CLASS, "putByte", "(II)V");
+    }
+    
+    /** Pushes the address stored in the header RAM at {@code index}. */
+    private static void jumpTarget(Code code, byte index) {
+        code.cpuField("h0", "L" + MEMORY_CLASS + ";");
+        code.constant(index);
+        code.invoke(ClassFile.INVOKEINTERFACE, MEMORY_CLASS, "getByte", "(I)B");
+        code.cpuField("h1", "L" + MEMORY_CLASS + ";");
+        code.constant(index);
+        code.invoke(ClassFile.INVOKEINTERFACE, MEMORY_CLASS, "getByte", "(I)B");
+        code.invoke(ClassFile.INVOKESTATIC, "celsior/MathUtils", "bytesToShort", "(BB)C");
+    }
+    
+    /**
+     * Emits a call to the bus-accurate method implementing {@code in}, with the program counter moved
+     * past it and the cycle count brought up to date first like the interpreter does.
+     */
+    private static void call(Code code, DecodedInstruction in) {
+        int op = Byte.toUnsignedInt(in.opcode);
+        
+        code.setProgCounter(in.address + in.length);
+        code.countCycles();
+        
+        String owner;
+        if(op >= 0x50) {
+            owner = GPU_CLASS;
+            code.cpuField("machine", "L" + MACHINE_CLASS + ";");
+            code.indexed(ClassFile.GETFIELD, code.cf.fieldRef(MACHINE_CLASS, "gpu", "L" + GPU_CLASS + ";"));
+        } else {
+            owner = CPU_CLASS;
+            code.op(ClassFile.ALOAD_1);
+        }
+        
+        byte[] o = {in.a, in.b, in.c, in.d, in.e};
+        StringBuilder descriptor = new StringBuilder("(");
+        for(int i = 0; i < in.length - 1; i++) {
+            code.constant(o[i]);
+            descriptor.append('B');
+        }
+        descriptor.append(")V");
+        
+        code.invoke(ClassFile.INVOKEVIRTUAL, owner, METHODS[op], descriptor.toString());
+    }
+    
+    /**
+     * The bytecode of the method being generated. Local 1 is the CPU, local 2 its register file.
+     */
+    private static final class Code {
+        final ClassFile cf;
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        
+        /** Instructions emitted since the cycle count was last brought up to date. */
+        int uncounted;
+        
+        Code(ClassFile _cf) {
+            cf = _cf;
+        }
+        
+        void op(int opcode) {
+            bytes.write(opcode);
+        }
+        
+        void indexed(int opcode, int index) {
+            bytes.write(opcode);
+            bytes.write(index >> 8);
+            bytes.write(index);
+        }
+        
+        void constant(int value) {
+            if(value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(ClassFile.BIPUSH);
+                bytes.write(value);
+            } else {
+                indexed(ClassFile.LDC_W, cf.integer(value));
+            }
+        }
+        
+        void cpuField(String name, String descriptor) {
+            op(ClassFile.ALOAD_1);
+            indexed(ClassFile.GETFIELD, cf.fieldRef(CPU_CLASS, name, descriptor));
+        }
+        
+        /** Pushes the register file and {@code regId}, for a following {@code BASTORE}. */
+        void register(int regId) {
+            op(ClassFile.ALOAD_2);
+            constant(regId);
+        }
+        
+        void loadRegister(int regId) {
+            register(regId);
+            op(ClassFile.BALOAD);
+        }
+        
+        /** Stores the int on top of the stack, below which the CPU must be, in the program counter. */
+        void putProgCounter() {
+            indexed(ClassFile.PUTFIELD, cf.fieldRef(CPU_CLASS, "progCounter", "I"));
+        }
+        
+        void setProgCounter(int value) {
+            op(ClassFile.ALOAD_1);
+            constant(value);
+            putProgCounter();
+        }
+        
+        /** cpu.cycles += uncounted */
+        void countCycles() {
+            if(uncounted == 0)
+                return;
+            
+            int cycles = cf.fieldRef(CPU_CLASS, "cycles", "J");
+            op(ClassFile.ALOAD_1);
+            op(ClassFile.DUP);
+            indexed(ClassFile.GETFIELD, cycles);
+            constant(uncounted);
+            op(ClassFile.I2L);
+            op(ClassFile.LADD);
+            indexed(ClassFile.PUTFIELD, cycles);
+            
+            uncounted = 0;
+        }
+        
+        void invoke(int opcode, String owner, String name, String descriptor) {
+            if(opcode == ClassFile.INVOKEINTERFACE) {
+                indexed(opcode, cf.interfaceMethodRef(owner, name, descriptor));
+                bytes.write(descriptor.indexOf(')')); // the receiver and one slot per argument, all ints or bytes
+                bytes.write(0);
+            } else {
+                indexed(opcode, cf.methodRef(owner, name, descriptor));
+            }
+        }
+    }
+    
+    private static boolean compilable(DispatchTable table, DecodedInstruction in) {
+        int op = Byte.toUnsignedInt(in.opcode);
+        if(METHODS[op] == null || !table.isBuiltin(in.opcode))
+            return false;
+        
+        // registers the CPU doesn't have are reported by the interpreter
+        byte[] o = {in.a, in.b, in.c, in.d, in.e};
+        for(int i = 0; i < o.length; i++) {
+            if((REGISTER_OPERANDS[op] >> i & 1) == 1 && !validRegister(o[i]))
+                return false;
+        }
+        
+        return true;
+    }
+    
+    private static boolean validRegister(byte regId) {
+        return (regId >= CPU.R0 && regId <= CPU.INPUT) || regId == CPU.STACK;
+    }
+    
+    private static boolean endsBlock(DecodedInstruction in, int start) {
+        switch(in.opcode) {
+            case 0x07: // JMP
+            case 0x08: // JIF
+            case 0x50: // PXL
+            case 0x51: // LINE
+                return true;
+            default:
+                int target = in.writeTarget();
+                return target >= start && target < start + MAX_BYTES;
+        }
+    }
+    
+    private static final String[] METHODS = new String[256];
+    
+    /** Bit i is set if operand i of the instruction is a register id. */
+    private static final int[] REGISTER_OPERANDS = new int[256];
+    
+    private static void op(int opcode, String method, int registerOperands) {
+        METHODS[opcode] = method;
+        REGISTER_OPERANDS[opcode] = registerOperands;
+    }
+    
+    static {
+        op(0x01, "add", 0b111);
+        op(0x02, "sub", 0b111);
+        op(0x03, "mul", 0b111);
+        op(0x04, "rgt", 0b101);
+        op(0x05, "lft", 0b101);
+        op(0x06, "lbl", 0);
+        op(0x07, "jmp", 0);
+        op(0x08, "jif", 0);
+        op(0x09, "mov", 0b1);
+        op(0x0A, "push", 0b1);
+        op(0x0B, "rtr", 0b11);
+        op(0x0C, "mtr", 0b100);
+        op(0x0D, "rtm", 0b1);
+        op(0x0E, "mtm", 0);
+        op(0x0F, "vtr", 0b10);
+        op(0x10, "rtv", 0b1);
+        op(0x11, "ftr", 0b1);
+        op(0x12, "cmp", 0b11);
+        op(0x13, "and", 0b111);
+        op(0x14, "not", 0b11);
+        op(0x15, "or", 0b111);
+        op(0x16, "xor", 0b111);
+        op(0x50, "pxl", 0b111);
+        op(0x51, "line", 0b11111);
+        op(0x52, "prt", 0);
+        op(0x53, "gmt", 0);
+    }
+}
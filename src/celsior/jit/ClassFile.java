@@ -0,0 +1,159 @@
+package celsior.jit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Just enough of a class file writer to emit a final class with a default constructor and a single
+ * straight-line method. Generated code has no branches, so no stack map frames are needed.
+ */
+final class ClassFile {
+    
+    static final int ICONST_M1 = 0x02, ICONST_1 = 0x04, BIPUSH = 0x10, LDC_W = 0x13, ALOAD_0 = 0x2A,
+            ALOAD_1 = 0x2B, ALOAD_2 = 0x2C, BALOAD = 0x33, ASTORE_2 = 0x4D, BASTORE = 0x54, DUP = 0x59,
+            IADD = 0x60, LADD = 0x61, ISUB = 0x64, IMUL = 0x68, INEG = 0x74, ISHR = 0x7A, IUSHR = 0x7C,
+            IAND = 0x7E, IOR = 0x80, IXOR = 0x82, I2L = 0x85, RETURN = 0xB1, GETFIELD = 0xB4, PUTFIELD = 0xB5, INVOKEVIRTUAL = 0xB6,
+            INVOKESPECIAL = 0xB7, INVOKESTATIC = 0xB8, INVOKEINTERFACE = 0xB9;
+    
+    ClassFile(String _name, String _interfaceName) {
+        name = _name;
+        interfaceName = _interfaceName;
+    }
+    
+    int utf8(String s) {
+        return constant("U" + s, 1, out -> out.writeUTF(s));
+    }
+    
+    int classRef(String internalName) {
+        int n = utf8(internalName);
+        return constant("C" + internalName, 7, out -> out.writeShort(n));
+    }
+    
+    int integer(int value) {
+        return constant("I" + value, 3, out -> out.writeInt(value));
+    }
+    
+    int fieldRef(String owner, String fieldName, String descriptor) {
+        return memberRef(9, owner, fieldName, descriptor);
+    }
+    
+    int methodRef(String owner, String methodName, String descriptor) {
+        return memberRef(10, owner, methodName, descriptor);
+    }
+    
+    int interfaceMethodRef(String owner, String methodName, String descriptor) {
+        return memberRef(11, owner, methodName, descriptor);
+    }
+    
+    private int memberRef(int tag, String owner, String memberName, String descriptor) {
+        int c = classRef(owner);
+        int n = utf8(memberName);
+        int d = utf8(descriptor);
+        int nt = constant("N" + memberName + ":" + descriptor, 12, out -> {
+            out.writeShort(n);
+            out.writeShort(d);
+        });
+        return constant(tag + owner + "." + memberName + ":" + descriptor, tag, out -> {
+            out.writeShort(c);
+            out.writeShort(nt);
+        });
+    }
+    
+    /**
+     * Assembles the class.
+     * @param methodName name of the public method implementing the interface
+     * @param descriptor the method's descriptor
+     * @param code bytecode of the method
+     * @param maxStack operand stack depth the code needs
+     * @param maxLocals local variable slots the code needs, including {@code this}
+     * @return the class file bytes
+     */
+    byte[] toBytes(String methodName, String descriptor, byte[] code, int maxStack, int maxLocals) {
+        int thisClass = classRef(name);
+        int superClass = classRef("java/lang/Object");
+        int iface = classRef(interfaceName);
+        int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+        int codeAttr = utf8("Code");
+        int init = utf8("<init>");
+        int initDesc = utf8("()V");
+        int method = utf8(methodName);
+        int methodDesc = utf8(descriptor);
+        
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(52); // Java 8
+            out.writeShort(poolCount);
+            out.write(pool.toByteArray());
+            
+            out.writeShort(0x0001 | 0x0010 | 0x1000); // public final synthetic
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(1);
+            out.writeShort(iface);
+            out.writeShort(0); // fields
+            
+            out.writeShort(2); // methods
+            writeMethod(out, init, initDesc, codeAttr, new byte[] {
+                (byte) ALOAD_0, (byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit, (byte) RETURN
+            }, 1, 1);
+            writeMethod(out, method, methodDesc, codeAttr, code, maxStack, maxLocals);
+            
+            out.writeShort(0); // attributes
+            return bytes.toByteArray();
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+    
+    private void writeMethod(DataOutputStream out, int methodName, int descriptor, int codeAttr,
+            byte[] code, int maxStack, int maxLocals) throws IOException {
+        out.writeShort(0x0001); // public
+        out.writeShort(methodName);
+        out.writeShort(descriptor);
+        out.writeShort(1);
+        
+        out.writeShort(codeAttr);
+        out.writeInt(12 + code.length);
+        out.writeShort(maxStack);
+        out.writeShort(maxLocals);
+        out.writeInt(code.length);
+        out.write(code);
+        out.writeShort(0); // exception table
+        out.writeShort(0); // attributes
+    }
+    
+    private interface Entry {
+        void write(DataOutputStream out) throws IOException;
+    }
+    
+    private int constant(String key, int tag, Entry entry) {
+        Integer index = indices.get(key);
+        if(index != null)
+            return index;
+        
+        try {
+            DataOutputStream out = new DataOutputStream(pool);
+            out.writeByte(tag);
+            entry.write(out);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        }
+        
+        indices.put(key, poolCount);
+        return poolCount++;
+    }
+    
+    private final String name;
+    private final String interfaceName;
+    
+    private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+    private final Map<String, Integer> indices = new HashMap<>();
+    private int poolCount = 1;
+}
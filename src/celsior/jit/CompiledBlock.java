@@ -0,0 +1,15 @@
+package celsior.jit;
+
+import celsior.component.CPU;
+
+/**
+ * A basic block translated to JVM bytecode. Implemented by the classes {@link BlockCompiler} generates.
+ */
+public interface CompiledBlock {
+    
+    /**
+     * Runs every instruction of the block against {@code cpu}, leaving its program counter at the next
+     * instruction to execute.
+     */
+    void run(CPU cpu);
+}
@@ -0,0 +1,189 @@
+package celsior.jit;
+
+import celsior.Log;
+import celsior.component.CPU;
+import celsior.component.DecodedInstruction;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Dynamic translator for hot basic blocks. The CPU keeps interpreting and reports every block entry
+ * (the target of a jump or the fall-through after one); once an entry has been reached
+ * {@code threshold} times, the block starting there is compiled to a JVM class and run directly from
+ * then on. Stores into compiled code throw the affected blocks away.
+ */
+public final class Jit {
+    
+    public static final int DEFAULT_THRESHOLD = 50;
+    
+    public Jit(CPU _cpu, int _threshold) {
+        cpu = _cpu;
+        threshold = _threshold;
+        
+        int size = cpu.m.size();
+        blocks = new Block[size];
+        hits = new int[size];
+        coverage = new int[size];
+    }
+    
+    /**
+     * Runs the compiled block at the CPU's program counter, compiling it first if it just became hot.
+     * @return the number of instructions executed, which the block has added to the CPU's cycle count
+     *         itself, or 0 if the interpreter has to execute the next one
+     */
+    public int execute() {
+        int pc = cpu.progCounter;
+        if(pc >= blocks.length)
+            return 0;
+        
+        Block block = blocks[pc];
+        
+        if(block == null) {
+            if(!atEntry)
+                return 0;
+            
+            atEntry = false;
+            
+            if(++hits[pc] != threshold)
+                return 0;
+            
+            block = compile(pc);
+            if(block == null)
+                return 0;
+        }
+        
+        block.code.run(cpu);
+        atEntry = true;
+        
+        return block.instructions;
+    }
+    
+    /**
+     * Marks the CPU's program counter as the start of a block, called after the interpreter executed a
+     * jump.
+     */
+    public void branched() {
+        atEntry = true;
+    }
+    
+    /**
+     * Drops every compiled block containing one of the written bytes.
+     */
+    public void written(int address, int length) {
+        if(length >= blocks.length) {
+            clear();
+            return;
+        }
+        
+        for(int i = address; i < address + length && i < blocks.length; i++) {
+            if(coverage[i] == 0)
+                continue;
+            
+            for(int start = Math.max(0, i - BlockCompiler.MAX_BYTES); start <= i; start++) {
+                Block block = blocks[start];
+                if(block != null && i < block.end)
+                    remove(block);
+            }
+        }
+    }
+    
+    public void clear() {
+        Arrays.fill(blocks, null);
+        Arrays.fill(hits, 0);
+        Arrays.fill(coverage, 0);
+    }
+    
+    private Block compile(int start) {
+        List<DecodedInstruction> instructions = BlockCompiler.scan(cpu.decodeCache, start, blocks.length);
+        if(instructions.isEmpty())
+            return null;
+        
+        DecodedInstruction last = instructions.get(instructions.size() - 1);
+        byte[] bytes = BlockCompiler.compile(className(start), instructions);
+        
+        return install(start, last.address + last.length, instructions.size(), bytes);
+    }
+    
+    /**
+     * Loads a compiled block and runs it whenever the CPU reaches {@code start}.
+     * @param start address of the block's first instruction
+     * @param end address right after the block's last instruction
+     * @param instructions number of instructions in the block
+     * @param classBytes the class generated for the block
+     * @return the block, or null if the class could not be loaded
+     */
+    Block install(int start, int end, int instructions, byte[] classBytes) {
+        try {
+            CompiledBlock code = (CompiledBlock) new BlockLoader().define(className(start).replace('/', '.'), classBytes)
+                    .getDeclaredConstructor().newInstance();
+            
+            Block block = new Block(start, end, instructions, code);
+            install(block);
+            
+            return block;
+        } catch (ReflectiveOperationException | LinkageError | ClassCastException ex) {
+            Log.warn("Failed to load block at 0x" + Integer.toHexString(start).toUpperCase() + ": " + ex);
+            return null;
+        }
+    }
+    
+    static String className(int start) {
+        return "celsior/jit/Block_" + Integer.toHexString(start);
+    }
+    
+    private void install(Block block) {
+        Block old = blocks[block.start];
+        if(old != null)
+            remove(old);
+        
+        blocks[block.start] = block;
+        
+        for(int i = block.start; i < block.end; i++)
+            coverage[i]++;
+    }
+    
+    private void remove(Block block) {
+        blocks[block.start] = null;
+        hits[block.start] = 0;
+        
+        for(int i = block.start; i < block.end; i++)
+            coverage[i]--;
+    }
+    
+    static final class Block {
+        Block(int _start, int _end, int _instructions, CompiledBlock _code) {
+            start = _start;
+            end = _end;
+            instructions = _instructions;
+            code = _code;
+        }
+        
+        final int start, end;
+        final int instructions;
+        final CompiledBlock code;
+    }
+    
+    /** One loader per block, so discarded blocks can be unloaded. */
+    private static final class BlockLoader extends ClassLoader {
+        BlockLoader() {
+            super(Jit.class.getClassLoader());
+        }
+        
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+    
+    private final CPU cpu;
+    private final int threshold;
+    
+    private final Block[] blocks;
+    
+    /** Times each block entry was reached by the interpreter. */
+    private final int[] hits;
+    
+    /** Number of compiled blocks containing each address. */
+    private final int[] coverage;
+    
+    private boolean atEntry = true;
+}
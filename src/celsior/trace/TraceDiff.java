@@ -0,0 +1,471 @@
+package celsior.trace;
+
+import celsior.Headless;
+import celsior.InputScript;
+import celsior.Machine;
+import celsior.component.CPU;
+import celsior.component.Cartridge;
+import celsior.component.DispatchTable;
+import celsior.component.Memory;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Finds the first point where two runs of a program disagree: either two recorded traces, read in step,
+ * or two machines running side by side, a reference interpreting bus-accurate micro-ops and a candidate
+ * using any faster path (macro-ops, fused pairs, the JIT or AOT blocks). Both only keep a fixed number of
+ * records around, so runs of any length are compared in constant memory.
+ */
+public final class TraceDiff {
+    
+    private TraceDiff() {}
+    
+    public static final class Divergence {
+        /**
+         * Index of the first record that differs. For live runs, the first instruction the reference ran
+         * since the machines last agreed.
+         */
+        public final long index;
+        public final long cycle;
+        
+        /** What differs, like {@code "r3 0x05 != 0x06"}. */
+        public final String description;
+        
+        /** The records around the divergence, one per line. */
+        public final String context;
+        
+        Divergence(long _index, long _cycle, String _description, String _context) {
+            index = _index;
+            cycle = _cycle;
+            description = _description;
+            context = _context;
+        }
+        
+        @Override
+        public String toString() {
+            return "First divergence at record " + index + " (cycle " + cycle + "): " + description + "\n" + context;
+        }
+    }
+    
+    /**
+     * Register changes and memory writes of a group of records, so a fused pair whose writes are all on
+     * its second record compares equal to the same two instructions run one at a time.
+     */
+    private static final class Effects {
+        /** Bit i is set if register i changed, see {@link TraceRecord#writesRegister}. */
+        int registers;
+        final byte[] values = new byte[CPU.STACK + 1];
+        
+        /** Memory writes in order, address << 8 | value. */
+        int[] memory = new int[4];
+        int memoryWrites;
+        
+        void clear() {
+            registers = 0;
+            memoryWrites = 0;
+        }
+        
+        void add(TraceRecord record) {
+            if(record.has(TraceRecord.REGISTER_WRITE))
+                set(record.register, record.registerValue);
+            if(record.has(TraceRecord.REGISTER_WRITE_2))
+                set(record.register2, record.registerValue2);
+            
+            if(record.has(TraceRecord.MEMORY_WRITE)) {
+                if(memoryWrites == memory.length)
+                    memory = java.util.Arrays.copyOf(memory, memory.length * 2);
+                
+                memory[memoryWrites++] = record.memoryAddress << 8 | Byte.toUnsignedInt(record.memoryValue);
+            }
+        }
+        
+        private void set(int register, byte value) {
+            if(register >= 0 && register < values.length) {
+                registers |= 1 << register;
+                values[register] = value;
+            }
+        }
+        
+        /**
+         * @return what differs from {@code other}, or null if nothing does
+         */
+        String compare(Effects other) {
+            for(int i = 0; i < values.length; i++) {
+                boolean changed = (registers >> i & 1) == 1, otherChanged = (other.registers >> i & 1) == 1;
+                
+                if(changed != otherChanged || changed && values[i] != other.values[i])
+                    return register(i) + " " + value(changed, values[i]) + " != " + value(otherChanged, other.values[i]);
+            }
+            
+            for(int i = 0; i < Math.max(memoryWrites, other.memoryWrites); i++) {
+                int write = i < memoryWrites ? memory[i] : -1, otherWrite = i < other.memoryWrites ? other.memory[i] : -1;
+                
+                if(write != otherWrite)
+                    return "memory write " + memoryWrite(write) + " != " + memoryWrite(otherWrite);
+            }
+            
+            return null;
+        }
+        
+        private static String value(boolean changed, byte value) {
+            return changed ? String.format("0x%02X", Byte.toUnsignedInt(value)) : "unchanged";
+        }
+        
+        private static String memoryWrite(int write) {
+            return write < 0 ? "none" : String.format("mem[0x%04X]=0x%02X", write >>> 8, write & 0xFF);
+        }
+    }
+    
+    /**
+     * Compares two traces record by record: cycle, address, opcode and operands of every record, and the
+     * registers and memory they change.
+     * @param radius number of records to show before and after the divergence
+     * @return the first divergence, or null if the traces are the same
+     */
+    public static Divergence compare(TraceReader a, TraceReader b, int radius) throws IOException {
+        TraceRecord recordA = new TraceRecord(), recordB = new TraceRecord();
+        Effects effectsA = new Effects(), effectsB = new Effects();
+        DispatchTable names = DispatchTable.bus();
+        
+        long group = 0; // first record of the group whose effects are being collected
+        
+        for(long i = 0; i < Math.min(a.size(), b.size()); i++) {
+            a.read(i, recordA);
+            b.read(i, recordB);
+            
+            String difference = compareInstruction(recordA, recordB, names);
+            if(difference != null)
+                return new Divergence(i, recordA.cycle, difference, context(a, b, i, radius, names));
+            
+            effectsA.add(recordA);
+            effectsB.add(recordB);
+            
+            if(recordA.has(TraceRecord.FUSED) || recordB.has(TraceRecord.FUSED))
+                continue;
+            
+            difference = effectsA.compare(effectsB);
+            if(difference != null)
+                return new Divergence(group, recordA.cycle, difference, context(a, b, group, radius, names));
+            
+            effectsA.clear();
+            effectsB.clear();
+            group = i + 1;
+        }
+        
+        if(a.size() != b.size()) {
+            long end = Math.min(a.size(), b.size());
+            // a cycle budget can stop runs a few instructions apart, fused pairs and compiled blocks overshoot it
+            String description = (a.size() < b.size() ? "first" : "second") + " trace ends, the other has "
+                    + Math.abs(a.size() - b.size()) + " more records";
+            
+            return new Divergence(end, -1, description, context(a, b, end, radius, names));
+        }
+        
+        return null;
+    }
+    
+    private static String compareInstruction(TraceRecord a, TraceRecord b, DispatchTable names) {
+        if(a.cycle != b.cycle)
+            return "cycle " + a.cycle + " != " + b.cycle;
+        if(a.address != b.address)
+            return String.format("address 0x%04X != 0x%04X", a.address, b.address);
+        if(a.opcode != b.opcode)
+            return "opcode " + names.name(a.opcode) + " != " + names.name(b.opcode);
+        
+        for(int i = 0; i < a.operands.length; i++) {
+            if(a.operands[i] != b.operands[i])
+                return "operand " + i + String.format(" 0x%02X != 0x%02X", Byte.toUnsignedInt(a.operands[i]), Byte.toUnsignedInt(b.operands[i]));
+        }
+        
+        if(a.has(TraceRecord.COMPLETE) != b.has(TraceRecord.COMPLETE))
+            return "only " + (a.has(TraceRecord.COMPLETE) ? "first" : "second") + " run finished the instruction";
+        
+        return null;
+    }
+    
+    private static String context(TraceReader a, TraceReader b, long index, int radius, DispatchTable names) throws IOException {
+        StringBuilder context = new StringBuilder();
+        TraceRecord record = new TraceRecord();
+        
+        for(long i = Math.max(0, index - radius); i <= index + radius; i++) {
+            if(i >= a.size() && i >= b.size())
+                break;
+            
+            context.append(i == index ? "> " : "  ");
+            if(i < a.size()) {
+                a.read(i, record);
+                context.append("a: ").append(record.format(names));
+            } else {
+                context.append("a: (end)");
+            }
+            
+            context.append('\n').append(i == index ? "> " : "  ");
+            if(i < b.size()) {
+                b.read(i, record);
+                context.append("b: ").append(record.format(names));
+            } else {
+                context.append("b: (end)");
+            }
+            
+            context.append('\n');
+        }
+        
+        return context.toString();
+    }
+    
+    /**
+     * Runs {@code rom} on a reference machine interpreting bus-accurate micro-ops and on a candidate
+     * machine set up by {@code options}, and compares them whenever they have executed the same number of
+     * instructions: after every instruction, fused pair or compiled block of the candidate. Registers,
+     * flags, the program counter, the stack, whether they halted and the memory the reference wrote since
+     * the last comparison are checked each time; all of memory, the labels and VRAM every
+     * {@code fullCheckInterval} instructions and at the end.
+     * @param options the candidate's execution mode, JIT and AOT, and the cycle budget and input for both
+     * @param radius number of reference instructions to show before the divergence
+     * @return the first divergence, or null if both ran the same until the budget ran out or both halted
+     * @throws IOException if the ROM can't be mapped
+     */
+    public static Divergence live(Path rom, Headless.Options options, int radius, long fullCheckInterval) throws IOException {
+        Machine reference = new Machine((machine, message) -> {});
+        Machine candidate = new Machine((machine, message) -> {});
+        
+        TraceRecorder referenceTrace = new TraceRecorder(Math.max(radius, 1) + 1024);
+        reference.cpu.setMode(CPU.Mode.BUS);
+        reference.cpu.addInstrument(referenceTrace);
+        
+        TraceRecorder candidateTrace = new TraceRecorder(Math.max(radius, 1) + 1024);
+        candidate.cpu.setMode(options.mode);
+        candidate.cpu.setJitEnabled(options.jit || options.aot);
+        
+        reference.setMemoryMapped(options.mmio);
+        candidate.setMemoryMapped(options.mmio);
+        candidate.cpu.addInstrument(candidateTrace);
+        
+        // the cartridge is only read, both can share the mapping
+        Cartridge cartridge = Cartridge.map(rom);
+        reference.load(cartridge);
+        candidate.load(cartridge);
+        
+        if(options.aot)
+            celsior.jit.Aot.load(candidate.cpu, candidate.getCartridge().head(candidate.cpu.m.size()));
+        
+        reference.start();
+        candidate.start();
+        
+        // each machine gets the input when it reaches the event's cycle, at the same point as the other
+        InputScript input = options.input;
+        int referenceInput = 0, candidateInput = 0;
+        
+        long lastRecord = 0, nextFullCheck = fullCheckInterval;
+        while(true) {
+            if(input != null) {
+                referenceInput = input.apply(reference, referenceInput);
+                candidateInput = input.apply(candidate, candidateInput);
+            }
+            
+            candidate.clock();
+            
+            // an instruction that throws isn't counted, so the reference has to run it too
+            while(!reference.isStopped() && (reference.cpu.cycles < candidate.cpu.cycles
+                    || candidate.isStopped() && reference.cpu.cycles == candidate.cpu.cycles))
+                reference.clock();
+            
+            boolean end = reference.isStopped() || candidate.isStopped() || candidate.cpu.cycles >= options.maxCycles;
+            
+            String difference = compareState(reference, candidate);
+            
+            if(difference == null)
+                difference = compareWrites(reference, candidate, referenceTrace, lastRecord);
+            
+            if(difference == null && (end || reference.cpu.cycles >= nextFullCheck)) {
+                nextFullCheck = reference.cpu.cycles + fullCheckInterval;
+                difference = compareMemory(reference, candidate);
+            }
+            
+            if(difference != null) {
+                return new Divergence(lastRecord, lastRecord, difference,
+                        liveContext(referenceTrace, candidateTrace, radius));
+            }
+            
+            if(end)
+                return null;
+            
+            lastRecord = referenceTrace.getCount();
+        }
+    }
+    
+    private static String compareState(Machine reference, Machine candidate) {
+        CPU a = reference.cpu, b = candidate.cpu;
+        
+        if(reference.isStopped() != candidate.isStopped())
+            return "only the " + (reference.isStopped() ? "reference" : "candidate") + " halted: "
+                    + (reference.isStopped() ? reference.getLastError() : candidate.getLastError());
+        if(a.cycles != b.cycles)
+            return "cycles " + a.cycles + " != " + b.cycles;
+        if(reference.isStopped() && !java.util.Objects.equals(reference.getLastError(), candidate.getLastError()))
+            return "error \"" + reference.getLastError() + "\" != \"" + candidate.getLastError() + "\"";
+        if(a.progCounter != b.progCounter)
+            return String.format("program counter 0x%04X != 0x%04X", a.progCounter, b.progCounter);
+        
+        for(int i = CPU.R0; i <= CPU.FLAGS; i++) {
+            if(a.regs[i] != b.regs[i])
+                return register(i) + String.format(" 0x%02X != 0x%02X", Byte.toUnsignedInt(a.regs[i]), Byte.toUnsignedInt(b.regs[i]));
+        }
+        
+        if(!a.stack.equals(b.stack))
+            return "stack";
+        
+        return null;
+    }
+    
+    /**
+     * Compares the bytes the reference stored to since record {@code from}, or all of memory if the
+     * ring no longer has those records.
+     */
+    private static String compareWrites(Machine reference, Machine candidate, TraceRecorder referenceTrace, long from) {
+        if(from < referenceTrace.getOldest())
+            return compareMemory(reference, candidate);
+        
+        TraceRecord record = new TraceRecord();
+        for(long i = from; i < referenceTrace.getCount(); i++) {
+            referenceTrace.read(i, record);
+            
+            if(!record.has(TraceRecord.MEMORY_WRITE))
+                continue;
+            
+            // through the bus, the write may have gone to a device
+            byte a = reference.cpu.bus.read(record.memoryAddress), b = candidate.cpu.bus.read(record.memoryAddress);
+            if(a != b)
+                return difference("memory", record.memoryAddress, a, b);
+        }
+        
+        return null;
+    }
+    
+    private static String compareMemory(Machine reference, Machine candidate) {
+        String difference = compareMemory("memory", reference.cpu.m, candidate.cpu.m);
+        if(difference == null)
+            difference = compareMemory("label high byte", reference.cpu.h0, candidate.cpu.h0);
+        if(difference == null)
+            difference = compareMemory("label low byte", reference.cpu.h1, candidate.cpu.h1);
+        if(difference == null)
+            difference = compareMemory("VRAM", reference.gpu.m, candidate.gpu.m);
+        
+        return difference;
+    }
+    
+    private static String compareMemory(String name, Memory a, Memory b) {
+        for(int i = 0; i < a.size(); i++) {
+            if(a.getByte(i) != b.getByte(i))
+                return difference(name, i, a.getByte(i), b.getByte(i));
+        }
+        
+        return null;
+    }
+    
+    private static String difference(String name, int address, byte a, byte b) {
+        return String.format("%s[0x%04X] 0x%02X != 0x%02X", name, address, Byte.toUnsignedInt(a), Byte.toUnsignedInt(b));
+    }
+    
+    private static String liveContext(TraceRecorder reference, TraceRecorder candidate, int radius) {
+        DispatchTable names = DispatchTable.bus();
+        TraceRecord record = new TraceRecord();
+        StringBuilder context = new StringBuilder();
+        
+        context.append("reference:\n");
+        for(long i = Math.max(reference.getOldest(), reference.getCount() - radius); i < reference.getCount(); i++) {
+            reference.read(i, record);
+            context.append("  ").append(record.format(names)).append('\n');
+        }
+        
+        context.append("candidate (interpreted instructions only):\n");
+        for(long i = Math.max(candidate.getOldest(), candidate.getCount() - radius); i < candidate.getCount(); i++) {
+            candidate.read(i, record);
+            context.append("  ").append(record.format(names)).append('\n');
+        }
+        
+        return context.toString();
+    }
+    
+    private static String register(int id) {
+        if(id == CPU.STACK)
+            return "push";
+        else if(id == CPU.INPUT)
+            return "input";
+        else if(id == CPU.FLAGS)
+            return "flags";
+        else
+            return "r" + id;
+    }
+    
+    /**
+     * Command line entry point, also reached with {@code --trace-diff} as the first argument to
+     * {@link celsior.Celsior#main}. Exits with 1 if the runs diverge.
+     */
+    public static void main(String[] args) {
+        Headless.Options options = new Headless.Options();
+        int radius = 5;
+        long fullCheckInterval = 1 << 16;
+        boolean live = false;
+        java.util.List<String> files = new java.util.ArrayList<>();
+        
+        try {
+            for(int i = 0; i < args.length; i++) {
+                int next = options.parse(args, i);
+                
+                if(next > i)
+                    i = next - 1;
+                else if(args[i].equals("--live"))
+                    live = true;
+                else if(args[i].equals("--context"))
+                    radius = Integer.parseInt(args[++i]);
+                else if(args[i].equals("--check-interval"))
+                    fullCheckInterval = Long.parseLong(args[++i]);
+                else if(args[i].startsWith("--"))
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+                else
+                    files.add(args[i]);
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException | IOException ex) {
+            System.err.println("[ERROR] " + (ex instanceof ArrayIndexOutOfBoundsException ? "Missing option value" : ex.getMessage()));
+            usage();
+            System.exit(2);
+        }
+        
+        if(files.size() != (live ? 1 : 2) || radius < 0 || fullCheckInterval < 1) {
+            usage();
+            System.exit(2);
+        }
+        
+        Divergence divergence;
+        try {
+            if(live) {
+                divergence = live(Paths.get(files.get(0)), options, radius, fullCheckInterval);
+            } else {
+                try(TraceReader a = new TraceReader(Paths.get(files.get(0)));
+                        TraceReader b = new TraceReader(Paths.get(files.get(1)))) {
+                    divergence = compare(a, b, radius);
+                }
+            }
+        } catch (IOException ex) {
+            System.err.println("[ERROR] " + ex.getLocalizedMessage());
+            System.exit(2);
+            return;
+        }
+        
+        if(divergence == null) {
+            System.out.println("No divergence");
+            System.exit(0);
+        }
+        
+        System.out.print(divergence);
+        System.exit(1);
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: celsior --trace-diff [--context n] a.bin b.bin\n"
+                + "       celsior --trace-diff --live [--context n] [--check-interval cycles] [--cycles n] "
+                + "[--mode bus|macro|lockstep] [--jit] [--aot] [--mmio] [--input script] rom.casm");
+    }
+}
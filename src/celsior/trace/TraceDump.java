@@ -0,0 +1,143 @@
+package celsior.trace;
+
+import celsior.component.DispatchTable;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+
+/**
+ * Prints the records of a trace as text, one instruction per line, keeping only those matching every
+ * filter given. Traces are recorded with {@code --trace} in headless runs.
+ */
+public final class TraceDump {
+    
+    private TraceDump() {}
+    
+    public static final class Filter {
+        public long fromCycle = 0, toCycle = Long.MAX_VALUE;
+        
+        /** Instruction address, -1 for any. */
+        public int address = -1;
+        
+        /** Opcode, -1 for any. */
+        public int opcode = -1;
+        
+        /** Register written, -1 for any. */
+        public int register = -1;
+        
+        /** Memory address written, -1 for any. */
+        public int memoryAddress = -1;
+        
+        public boolean matches(TraceRecord record) {
+            return record.cycle >= fromCycle && record.cycle <= toCycle
+                    && (address < 0 || record.address == address)
+                    && (opcode < 0 || Byte.toUnsignedInt(record.opcode) == opcode)
+                    && (register < 0 || record.writesRegister(register))
+                    && (memoryAddress < 0 || record.has(TraceRecord.MEMORY_WRITE) && record.memoryAddress == memoryAddress);
+        }
+    }
+    
+    /**
+     * Writes every record matching {@code filter}, at most {@code limit} of them.
+     * @param out receives one line per record
+     * @param countOnly only write the number of matching records
+     * @return the number of records that matched
+     */
+    public static long dump(TraceReader trace, Filter filter, long limit, boolean countOnly, Writer out) throws IOException {
+        DispatchTable names = DispatchTable.bus();
+        TraceRecord record = new TraceRecord();
+        long matched = 0;
+        
+        trace.seek(trace.find(filter.fromCycle));
+        while(matched < limit && trace.next(record) && record.cycle <= filter.toCycle) {
+            if(!filter.matches(record))
+                continue;
+            
+            matched++;
+            if(!countOnly) {
+                out.write(record.format(names));
+                out.write('\n');
+            }
+        }
+        
+        if(countOnly)
+            out.write(matched + "\n");
+        
+        return matched;
+    }
+    
+    private static int parseNumber(String value) {
+        if(value.startsWith("0x"))
+            return Integer.parseInt(value.substring(2), 16);
+        
+        return Integer.parseInt(value);
+    }
+    
+    /**
+     * Finds an opcode by mnemonic, or parses it as a number.
+     */
+    private static int parseOpcode(String value) {
+        DispatchTable names = DispatchTable.bus();
+        for(int i = 0; i < 256; i++) {
+            if(names.isKnown((byte) i) && names.name((byte) i).equalsIgnoreCase(value))
+                return i;
+        }
+        
+        return parseNumber(value);
+    }
+    
+    /**
+     * Command line entry point, also reached with {@code --trace-dump} as the first argument to
+     * {@link celsior.Celsior#main}.
+     */
+    public static void main(String[] args) {
+        Filter filter = new Filter();
+        long limit = Long.MAX_VALUE;
+        boolean countOnly = false;
+        String file = null;
+        
+        try {
+            for(int i = 0; i < args.length; i++) {
+                switch(args[i]) {
+                    case "--from": filter.fromCycle = Long.parseLong(args[++i]); break;
+                    case "--to": filter.toCycle = Long.parseLong(args[++i]); break;
+                    case "--pc": filter.address = parseNumber(args[++i]); break;
+                    case "--op": filter.opcode = parseOpcode(args[++i]); break;
+                    case "--reg": filter.register = parseNumber(args[++i]); break;
+                    case "--mem": filter.memoryAddress = parseNumber(args[++i]); break;
+                    case "--limit": limit = Long.parseLong(args[++i]); break;
+                    case "--count": countOnly = true; break;
+                    default:
+                        if(args[i].startsWith("--") || file != null)
+                            throw new IllegalArgumentException("Unknown option " + args[i]);
+                        file = args[i];
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException | IllegalArgumentException ex) {
+            System.err.println("[ERROR] " + (ex instanceof ArrayIndexOutOfBoundsException ? "Missing option value" : ex.getMessage()));
+            usage();
+            System.exit(2);
+        }
+        
+        if(file == null) {
+            usage();
+            System.exit(2);
+        }
+        
+        try(TraceReader trace = new TraceReader(Paths.get(file));
+                Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16)) {
+            dump(trace, filter, limit, countOnly, out);
+        } catch (IOException ex) {
+            System.err.println("[ERROR] Failed to read " + file + ": " + ex.getLocalizedMessage());
+            System.exit(1);
+        }
+    }
+    
+    private static void usage() {
+        System.err.println("Usage: celsior --trace-dump [--from cycle] [--to cycle] [--pc address] [--op mnemonic] "
+                + "[--reg id] [--mem address] [--limit n] [--count] trace.bin");
+    }
+}
@@ -0,0 +1,133 @@
+package celsior.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a trace written by {@link TraceRecorder}, one record at a time into a reused {@link TraceRecord}.
+ * The file is mapped in windows, so traces larger than memory can be read sequentially or by index.
+ */
+public final class TraceReader implements Closeable {
+    
+    /** Records per mapped window, 96MB. */
+    private static final int WINDOW_RECORDS = 1 << 22;
+    
+    private final FileChannel channel;
+    private final long count;
+    
+    private MappedByteBuffer window;
+    private long windowStart;
+    
+    /** Index of the record {@link #next} reads. */
+    private long position;
+    
+    /**
+     * Opens {@code file}.
+     * @throws IOException if it can't be read or isn't a trace
+     */
+    public TraceReader(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.READ);
+        
+        ByteBuffer header = ByteBuffer.allocate(TraceRecorder.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while(header.hasRemaining() && channel.read(header) >= 0) {}
+        
+        if(header.hasRemaining() || header.getInt(0) != TraceRecorder.MAGIC) {
+            channel.close();
+            throw new IOException(file + " is not a trace");
+        }
+        
+        if(header.getShort(4) != TraceRecorder.VERSION || header.getShort(6) != TraceRecord.SIZE) {
+            channel.close();
+            throw new IOException(file + " is a trace of version " + header.getShort(4) + ", expected " + TraceRecorder.VERSION);
+        }
+        
+        // a recorder that didn't get to close leaves the last chunk's unused space after the records
+        count = Math.min(header.getLong(TraceRecorder.COUNT), (channel.size() - TraceRecorder.HEADER_SIZE) / TraceRecord.SIZE);
+    }
+    
+    /**
+     * Number of records in the trace.
+     */
+    public long size() {
+        return count;
+    }
+    
+    public long position() {
+        return position;
+    }
+    
+    /**
+     * Makes {@link #next} continue at record {@code index}.
+     */
+    public void seek(long index) {
+        if(index < 0 || index > count)
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+        
+        position = index;
+    }
+    
+    /**
+     * Reads the next record.
+     * @return false at the end of the trace, leaving {@code record} unchanged
+     */
+    public boolean next(TraceRecord record) throws IOException {
+        if(position >= count)
+            return false;
+        
+        read(position++, record);
+        return true;
+    }
+    
+    /**
+     * Reads record {@code index}.
+     */
+    public void read(long index, TraceRecord record) throws IOException {
+        if(index < 0 || index >= count)
+            throw new IndexOutOfBoundsException("Record " + index + " of " + count);
+        
+        if(window == null || index < windowStart || index >= windowStart + WINDOW_RECORDS) {
+            windowStart = index - index % WINDOW_RECORDS;
+            long records = Math.min(WINDOW_RECORDS, count - windowStart);
+            
+            window = channel.map(FileChannel.MapMode.READ_ONLY,
+                    TraceRecorder.HEADER_SIZE + windowStart * TraceRecord.SIZE, records * TraceRecord.SIZE);
+            window.order(ByteOrder.LITTLE_ENDIAN);
+        }
+        
+        record.read(window, (int) (index - windowStart) * TraceRecord.SIZE);
+    }
+    
+    /**
+     * Finds the first record at or after {@code cycle}. Cycles only grow within a trace, so this is a
+     * binary search.
+     * @return the record's index, or {@link #size()} if the trace ends before {@code cycle}
+     */
+    public long find(long cycle) throws IOException {
+        TraceRecord record = new TraceRecord();
+        long low = 0, high = count;
+        
+        while(low < high) {
+            long middle = (low + high) >>> 1;
+            read(middle, record);
+            
+            if(record.cycle < cycle)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        
+        return low;
+    }
+    
+    @Override
+    public void close() throws IOException {
+        window = null;
+        channel.close();
+    }
+}
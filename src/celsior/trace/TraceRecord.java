@@ -0,0 +1,128 @@
+package celsior.trace;
+
+import celsior.component.CPU;
+import celsior.component.DispatchTable;
+import java.nio.ByteBuffer;
+
+/**
+ * One executed instruction in a trace. Records are {@link #SIZE} bytes, little-endian:
+ * <pre>
+ *  0  cycle            long, the CPU's cycle count when the instruction started
+ *  8  address          u16
+ * 10  opcode           u8
+ * 11  flags            u8, see {@link #REGISTER_WRITE} and the others
+ * 12  operands         5 x u8, unused ones are 0
+ * 17  register         u8, first register that changed
+ * 18  register value   u8, its new value
+ * 19  register 2       u8, second register that changed
+ * 20  register 2 value u8
+ * 21  memory value     u8, the byte stored to memory
+ * 22  memory address   u16
+ * </pre>
+ * Registers are ids like {@link CPU#R0}; a push onto the stack is a write to {@link CPU#STACK}. Only
+ * registers that changed value are recorded. Readers reuse one record instead of allocating one per
+ * instruction.
+ */
+public final class TraceRecord {
+    
+    public static final int SIZE = 24;
+    
+    static final int CYCLE = 0, ADDRESS = 8, OPCODE = 10, FLAGS = 11, OPERANDS = 12,
+            REGISTER = 17, REGISTER_VALUE = 18, REGISTER_2 = 19, REGISTER_2_VALUE = 20,
+            MEMORY_VALUE = 21, MEMORY_ADDRESS = 22;
+    
+    /** The first register write is set. */
+    public static final int REGISTER_WRITE = 1;
+    /** The second register write is set. */
+    public static final int REGISTER_WRITE_2 = 1 << 1;
+    /** More than two registers changed, the rest weren't recorded. */
+    public static final int REGISTERS_DROPPED = 1 << 2;
+    /** The instruction stored a byte to memory. */
+    public static final int MEMORY_WRITE = 1 << 3;
+    /**
+     * The instruction was fused with the next record's (see {@link celsior.component.DispatchTable#registerPair}),
+     * so the writes of both are on the next record.
+     */
+    public static final int FUSED = 1 << 4;
+    /** The instruction finished. Missing on the instruction that threw, which ends the trace. */
+    public static final int COMPLETE = 1 << 5;
+    
+    public long cycle;
+    public int address;
+    public byte opcode;
+    public int flags;
+    public final byte[] operands = new byte[DispatchTable.MAX_OPERANDS];
+    public byte register, registerValue, register2, registerValue2;
+    public int memoryAddress;
+    public byte memoryValue;
+    
+    /**
+     * Reads the record at {@code offset} in {@code buffer}, which must be little-endian.
+     */
+    void read(ByteBuffer buffer, int offset) {
+        cycle = buffer.getLong(offset + CYCLE);
+        address = Short.toUnsignedInt(buffer.getShort(offset + ADDRESS));
+        opcode = buffer.get(offset + OPCODE);
+        flags = Byte.toUnsignedInt(buffer.get(offset + FLAGS));
+        for(int i = 0; i < operands.length; i++)
+            operands[i] = buffer.get(offset + OPERANDS + i);
+        register = buffer.get(offset + REGISTER);
+        registerValue = buffer.get(offset + REGISTER_VALUE);
+        register2 = buffer.get(offset + REGISTER_2);
+        registerValue2 = buffer.get(offset + REGISTER_2_VALUE);
+        memoryValue = buffer.get(offset + MEMORY_VALUE);
+        memoryAddress = Short.toUnsignedInt(buffer.getShort(offset + MEMORY_ADDRESS));
+    }
+    
+    public boolean has(int flag) {
+        return (flags & flag) != 0;
+    }
+    
+    /**
+     * Whether this instruction changed register {@code id}, or pushed onto the stack for {@link CPU#STACK}.
+     */
+    public boolean writesRegister(int id) {
+        return has(REGISTER_WRITE) && register == id || has(REGISTER_WRITE_2) && register2 == id;
+    }
+    
+    /**
+     * Formats the record as one line, like {@code 1234 0x001A ADD 01 02 03 r3=0x05 mem[0xFF00]=0x07}.
+     * @param names table to get the opcode's mnemonic and operand count from
+     */
+    public String format(DispatchTable names) {
+        StringBuilder line = new StringBuilder();
+        line.append(cycle).append(String.format(" 0x%04X %-4s", address, names.name(opcode)));
+        
+        for(int i = 0; i < names.operandCount(opcode); i++)
+            line.append(String.format(" %02X", Byte.toUnsignedInt(operands[i])));
+        
+        if(has(REGISTER_WRITE))
+            appendRegister(line, register, registerValue);
+        if(has(REGISTER_WRITE_2))
+            appendRegister(line, register2, registerValue2);
+        if(has(REGISTERS_DROPPED))
+            line.append(" ...");
+        if(has(MEMORY_WRITE))
+            line.append(String.format(" mem[0x%04X]=0x%02X", memoryAddress, Byte.toUnsignedInt(memoryValue)));
+        if(has(FUSED))
+            line.append(" (fused)");
+        if(!has(COMPLETE))
+            line.append(" (did not finish)");
+        
+        return line.toString();
+    }
+    
+    private static void appendRegister(StringBuilder line, byte register, byte value) {
+        String name;
+        if(register == CPU.STACK)
+            name = "push";
+        else if(register == CPU.INPUT)
+            name = "input";
+        else if(register == CPU.FLAGS)
+            name = "flags";
+        else
+            name = "r" + register;
+        
+        line.append(String.format(" %s=0x%02X", name, Byte.toUnsignedInt(value)));
+    }
+}
@@ -0,0 +1,245 @@
+package celsior.trace;
+
+import celsior.component.CPU;
+import celsior.component.DecodedInstruction;
+import celsior.component.Instrument;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Records every interpreted instruction into a trace file as fixed-size {@link TraceRecord}s. The file is
+ * memory-mapped a chunk at a time, so recording is a few stores per instruction without any objects or
+ * system calls; the OS writes the pages out. Blocks run by the JIT aren't seen (see {@link Instrument}),
+ * so turn it off while recording.
+ * <p>
+ * The file starts with a {@value #HEADER_SIZE} byte header: the magic number, version, record size and
+ * record count. The count is kept up to date after every record, so a trace stays readable up to the
+ * last instruction if the process dies without closing it.
+ * <p>
+ * A recorder can also keep just the latest records in a ring in memory (see {@link #TraceRecorder(int)}),
+ * to see what led up to a failure without writing anything.
+ */
+public final class TraceRecorder implements Instrument, Closeable {
+    
+    /** "CTRC" in little-endian. */
+    static final int MAGIC = 0x43525443;
+    static final short VERSION = 1;
+    static final int HEADER_SIZE = 16;
+    
+    /** Offset of the record count in the header. */
+    static final int COUNT = 8;
+    
+    /** Records per mapped chunk, 24MB. */
+    private static final int CHUNK_RECORDS = 1 << 20;
+    private static final int CHUNK_SIZE = CHUNK_RECORDS * TraceRecord.SIZE;
+    
+    /** Registers watched for changes, r0-r7, input and flags. */
+    private static final int REGISTERS = CPU.FLAGS + 1;
+    
+    /** The trace file, null when recording to a ring. */
+    private final FileChannel channel;
+    private final ByteBuffer header;
+    private ByteBuffer chunk;
+    private final int chunkSize;
+    
+    /** Offset of the next record in {@link #chunk}. */
+    private int offset;
+    private long count;
+    
+    // state before the current instruction
+    private final byte[] registers = new byte[REGISTERS];
+    private int stackPointer;
+    private int memoryTarget;
+    
+    /** Where the current instruction's record is, and the first record of a fused pair. */
+    private ByteBuffer recordChunk, fusedChunk;
+    private int recordOffset, fusedOffset = -1;
+    
+    /**
+     * Creates or overwrites {@code file}.
+     */
+    public TraceRecorder(Path file) throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+        header.order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MAGIC);
+        header.putShort(4, VERSION);
+        header.putShort(6, (short) TraceRecord.SIZE);
+        header.putLong(COUNT, 0);
+        
+        chunkSize = CHUNK_SIZE;
+        offset = CHUNK_SIZE; // maps the first chunk on the first record
+    }
+    
+    /**
+     * Creates a recorder keeping the last {@code capacity} records in memory, see {@link #read}.
+     */
+    public TraceRecorder(int capacity) {
+        if(capacity < 1)
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        
+        channel = null;
+        header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        chunk = ByteBuffer.allocate(capacity * TraceRecord.SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        chunkSize = chunk.capacity();
+    }
+    
+    /**
+     * Number of records written so far.
+     */
+    public long getCount() {
+        return count;
+    }
+    
+    /**
+     * Index of the oldest record {@link #read} can still read, 0 when recording to a file.
+     */
+    public long getOldest() {
+        return channel == null ? Math.max(0, count - chunkSize / TraceRecord.SIZE) : 0;
+    }
+    
+    /**
+     * Reads record {@code index} from the ring. Read files with a {@link TraceReader}.
+     * @throws IllegalStateException if recording to a file
+     * @throws IndexOutOfBoundsException if the record was overwritten or hasn't been written yet
+     */
+    public void read(long index, TraceRecord record) {
+        if(channel != null)
+            throw new IllegalStateException("Recording to a file");
+        if(index < getOldest() || index >= count)
+            throw new IndexOutOfBoundsException("Record " + index + ", have " + getOldest() + " to " + count);
+        
+        record.read(chunk, (int) (index % (chunkSize / TraceRecord.SIZE)) * TraceRecord.SIZE);
+    }
+    
+    @Override
+    public void before(CPU cpu, DecodedInstruction in) {
+        System.arraycopy(cpu.regs, CPU.R0, registers, 0, REGISTERS);
+        stackPointer = cpu.stack.getPointer();
+        
+        memoryTarget = in.writeTarget();
+        if(memoryTarget < 0 && in.next != null)
+            memoryTarget = in.next.writeTarget();
+        
+        if(in.next != null) {
+            begin(cpu.cycles, in, TraceRecord.FUSED);
+            fusedChunk = recordChunk;
+            fusedOffset = recordOffset;
+            
+            begin(cpu.cycles + 1, in.next, 0);
+        } else {
+            fusedOffset = -1;
+            begin(cpu.cycles, in, 0);
+        }
+    }
+    
+    /**
+     * Writes the record for {@code in}, without its effects, and leaves {@link #recordChunk} and
+     * {@link #recordOffset} pointing at it.
+     */
+    private void begin(long cycle, DecodedInstruction in, int flags) {
+        if(offset == chunkSize && channel == null) {
+            offset = 0;
+        } else if(offset == chunkSize) {
+            try {
+                chunk = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + count * TraceRecord.SIZE, CHUNK_SIZE);
+            } catch (IOException ex) {
+                throw new UncheckedIOException("Failed to extend trace", ex);
+            }
+            
+            chunk.order(ByteOrder.LITTLE_ENDIAN);
+            offset = 0;
+        }
+        
+        ByteBuffer c = chunk;
+        int o = offset;
+        
+        c.putLong(o + TraceRecord.CYCLE, cycle);
+        c.putShort(o + TraceRecord.ADDRESS, (short) in.address);
+        c.put(o + TraceRecord.OPCODE, in.opcode);
+        c.put(o + TraceRecord.FLAGS, (byte) flags);
+        c.put(o + TraceRecord.OPERANDS, in.a);
+        c.put(o + TraceRecord.OPERANDS + 1, in.b);
+        c.put(o + TraceRecord.OPERANDS + 2, in.c);
+        c.put(o + TraceRecord.OPERANDS + 3, in.d);
+        c.put(o + TraceRecord.OPERANDS + 4, in.e);
+        c.putInt(o + TraceRecord.REGISTER, 0); // both register writes
+        c.put(o + TraceRecord.MEMORY_VALUE, (byte) 0);
+        c.putShort(o + TraceRecord.MEMORY_ADDRESS, (short) 0);
+        
+        recordChunk = c;
+        recordOffset = o;
+        
+        offset += TraceRecord.SIZE;
+        header.putLong(COUNT, ++count);
+    }
+    
+    @Override
+    public void after(CPU cpu, DecodedInstruction in) {
+        ByteBuffer c = recordChunk;
+        int o = recordOffset;
+        int flags = TraceRecord.COMPLETE;
+        
+        for(int i = 0; i < REGISTERS; i++) {
+            if(cpu.regs[CPU.R0 + i] != registers[i])
+                flags = registerWrite(c, o, flags, CPU.R0 + i, cpu.regs[CPU.R0 + i]);
+        }
+        
+        int pointer = cpu.stack.getPointer();
+        if(pointer > stackPointer)
+            flags = registerWrite(c, o, flags, CPU.STACK, cpu.stack.getElementAt(pointer));
+        
+        if(memoryTarget >= 0) {
+            flags |= TraceRecord.MEMORY_WRITE;
+            c.put(o + TraceRecord.MEMORY_VALUE, cpu.bus.read(memoryTarget));
+            c.putShort(o + TraceRecord.MEMORY_ADDRESS, (short) memoryTarget);
+        }
+        
+        c.put(o + TraceRecord.FLAGS, (byte) flags);
+        
+        if(fusedOffset >= 0)
+            fusedChunk.put(fusedOffset + TraceRecord.FLAGS, (byte) (TraceRecord.FUSED | TraceRecord.COMPLETE));
+    }
+    
+    private static int registerWrite(ByteBuffer c, int o, int flags, int register, byte value) {
+        if((flags & TraceRecord.REGISTER_WRITE) == 0) {
+            c.put(o + TraceRecord.REGISTER, (byte) register);
+            c.put(o + TraceRecord.REGISTER_VALUE, value);
+            return flags | TraceRecord.REGISTER_WRITE;
+        } else if((flags & TraceRecord.REGISTER_WRITE_2) == 0) {
+            c.put(o + TraceRecord.REGISTER_2, (byte) register);
+            c.put(o + TraceRecord.REGISTER_2_VALUE, value);
+            return flags | TraceRecord.REGISTER_WRITE_2;
+        } else {
+            return flags | TraceRecord.REGISTERS_DROPPED;
+        }
+    }
+    
+    /**
+     * Cuts the file down to the records written and closes it. Detach the recorder from the CPU first.
+     */
+    @Override
+    public void close() throws IOException {
+        if(channel == null)
+            return;
+        
+        header.putLong(COUNT, count);
+        chunk = recordChunk = fusedChunk = null;
+        
+        try {
+            channel.truncate(HEADER_SIZE + count * TraceRecord.SIZE);
+        } catch (IOException ex) {
+            // some platforms can't shrink a file that is still mapped, the header has the real length
+        }
+        
+        channel.close();
+    }
+}